@@ -0,0 +1,77 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Decoding a UTF-8 message with ChannelEvent.getString, for a new event
+ *  per message as they are delivered. legacy decodes with a new
+ *  CharsetDecoder per call, as getString used to, and newString is the
+ *  String constructor for reference.
+ *
+ *  Run with -prof gc for the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelEventBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    @Param({ "ascii", "utf8" })
+    public String text;
+
+    private ByteBuffer mData;
+    private byte[] mBytes;
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[length];
+        Arrays.fill(chars, text.equals("ascii") ? 'a' : '\u00e5');
+
+        mBytes = new String(chars).getBytes(UTF8);
+        mData = ByteBuffer.wrap(mBytes);
+    }
+
+    @Benchmark
+    public String getString() {
+        return new ChannelEvent(null, Frame.UTF8, mData).getString();
+    }
+
+    @Benchmark
+    public String legacy() throws CharacterCodingException {
+        int pos = mData.position();
+
+        try {
+            return Charset.forName("UTF-8").newDecoder().decode(mData).toString();
+        } finally {
+            mData.position(pos);
+        }
+    }
+
+    @Benchmark
+    public String newString() {
+        return new String(mBytes, UTF8);
+    }
+}
@@ -0,0 +1,77 @@
+package com.hydna;
+
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Time until a number of channels on one host are all open, when
+ *  connected one at a time and with Channel.connectAll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class ConnectAllBenchmark {
+
+    @Param({ "100" })
+    public int channels;
+
+    private final Semaphore mOpened = new Semaphore(0);
+    private final Semaphore mClosed = new Semaphore(0);
+    private final Semaphore mMessages = new Semaphore(0);
+
+    private ProbeChannel[] mChannels;
+    private URL[] mUrls;
+
+    @Setup(Level.Invocation)
+    public void setup(Server server) throws Exception {
+        mChannels = new ProbeChannel[channels];
+        mUrls = new URL[channels];
+
+        for (int i = 0; i < channels; i++) {
+            mChannels[i] = new ProbeChannel(mOpened, mClosed, mMessages);
+            mUrls[i] = server.getUrl("all-" + i);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws Exception {
+        for (int i = 0; i < channels; i++) {
+            mChannels[i].close();
+        }
+
+        ProbeChannel.await(mClosed, channels);
+    }
+
+    @Benchmark
+    public void connect() throws Exception {
+        for (int i = 0; i < channels; i++) {
+            mChannels[i].connect(mUrls[i], ChannelMode.READWRITE);
+        }
+
+        ProbeChannel.await(mOpened, channels);
+    }
+
+    @Benchmark
+    public void connectAll() throws Exception {
+        Channel.connectAll(mChannels, mUrls, ChannelMode.READWRITE);
+        ProbeChannel.await(mOpened, channels);
+    }
+}
@@ -0,0 +1,23 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  A channel that counts the messages delivered to it, without being
+ *  connected. Frames are posted to it as the connection would.
+ */
+class CountingChannel extends Channel {
+
+    volatile long delivered = 0;
+    long bytes = 0;
+
+    CountingChannel(Dispatcher dispatcher) {
+        super(dispatcher);
+    }
+
+    @Override
+    public void onMessage(Channel channel, ByteBuffer data, int ctype, int priority) {
+        bytes += data.remaining();
+        delivered++;
+    }
+}
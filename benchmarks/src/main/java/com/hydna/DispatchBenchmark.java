@@ -0,0 +1,102 @@
+package com.hydna;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Delivering an inbound message, from the connection posting the frame
+ *  until onMessage has run, through each Dispatcher that runs on a plain
+ *  JVM. The LooperDispatcher needs Android. deliver is the latency of one
+ *  message, burst the time per message when they are posted back to
+ *  back. With reusableEvents the 4-arg onMessage gets the payload
+ *  without an event or a copy being created.
+ *
+ *  Run with -prof gc for the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    static final int BURST = 1000;
+
+    @Param({ "direct", "executor" })
+    public String dispatcher;
+
+    @Param({ "false", "true" })
+    public boolean reusableEvents;
+
+    private ExecutorService mExecutor;
+    private CountingChannel mChannel;
+    private Frame mFrame;
+
+    @Setup
+    public void setup() {
+        Dispatcher target;
+
+        if (dispatcher.equals("executor")) {
+            mExecutor = Executors.newSingleThreadExecutor();
+            target = new ExecutorDispatcher(mExecutor);
+        } else {
+            target = new DirectDispatcher();
+        }
+
+        mChannel = new CountingChannel(target);
+        mChannel.setReusableEvents(reusableEvents);
+        mFrame = Frame.dataFrame(1, Frame.BINARY, 0, new byte[64]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public long deliver() {
+        long expected = mChannel.delivered + 1;
+
+        mChannel.postFrame(Frame.DATA, mFrame);
+
+        while (mChannel.delivered != expected) {
+            // Wait for the executor
+        }
+
+        return expected;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long burst() {
+        long expected = mChannel.delivered + BURST;
+
+        for (int i = 0; i < BURST; i++) {
+            mChannel.postFrame(Frame.DATA, mFrame);
+        }
+
+        while (mChannel.delivered != expected) {
+            // Wait for the executor
+        }
+
+        return expected;
+    }
+}
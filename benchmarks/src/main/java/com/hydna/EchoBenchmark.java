@@ -0,0 +1,79 @@
+package com.hydna;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Round trips over many connections to a LocalServer: one message is
+ *  sent on each connection and the round ends when every echo is back.
+ *  Compares threads per connection with selector threads as the number
+ *  of connections grows.
+ *
+ *  Scores are per round.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoBenchmark {
+
+    @Param({ "1", "64", "512" })
+    public int connections;
+
+    private final Semaphore mOpened = new Semaphore(0);
+    private final Semaphore mClosed = new Semaphore(0);
+    private final Semaphore mMessages = new Semaphore(0);
+
+    private ProbeChannel[] mChannels;
+    private final byte[] mMessage = new byte[64];
+
+    @Setup
+    public void setup(Server server) throws Exception {
+        // One path per connection
+        Connection.setMaxPathsPerConnection(1);
+
+        mChannels = new ProbeChannel[connections];
+
+        for (int i = 0; i < connections; i++) {
+            mChannels[i] = new ProbeChannel(mOpened, mClosed, mMessages);
+            mChannels[i].connect(server.getUrl("echo-" + i),
+                                ChannelMode.READWRITE);
+        }
+
+        ProbeChannel.await(mOpened, connections);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (int i = 0; i < connections; i++) {
+            mChannels[i].close();
+        }
+
+        ProbeChannel.await(mClosed, connections);
+        Connection.setMaxPathsPerConnection(0);
+    }
+
+    @Benchmark
+    public void round() throws Exception {
+        for (int i = 0; i < connections; i++) {
+            mChannels[i].send(mMessage);
+        }
+
+        ProbeChannel.await(mMessages, connections);
+    }
+}
@@ -0,0 +1,65 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Posting one broadcast (ptr 0) frame to every channel of a connection:
+ *  one read-only payload shared by all channels, against a copy of the
+ *  frame per channel as broadcasts used to be posted.
+ *
+ *  Scores are per broadcast. Run with -prof gc for the bytes allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({ "16", "1000" })
+    public int channels;
+
+    @Param({ "1024", "61440" })
+    public int payloadSize;
+
+    private Channel[] mChannels;
+    private Frame mFrame;
+
+    @Setup
+    public void setup() {
+        Dispatcher dispatcher = new DirectDispatcher();
+
+        mChannels = new Channel[channels];
+
+        for (int i = 0; i < channels; i++) {
+            mChannels[i] = new CountingChannel(dispatcher);
+        }
+
+        mFrame = Frame.dataFrame(0, Frame.BINARY, 0, new byte[payloadSize]);
+    }
+
+    @Benchmark
+    public void shared() {
+        Subscription.postFrame(mChannels, Frame.DATA, mFrame);
+    }
+
+    @Benchmark
+    public void copyPerChannel() {
+        for (int i = 0; i < mChannels.length; i++) {
+            mChannels[i].postFrame(Frame.DATA, mFrame.clone());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ *  A channel that consumes everything written to it, standing in for a
+ *  socket with an empty send buffer. Counts the write calls made, which
+ *  map one to one to system calls on a real socket.
+ */
+class NullChannel implements GatheringByteChannel {
+
+    private long mWrites = 0;
+    private long mBytes = 0;
+
+    long getWrites() {
+        return mWrites;
+    }
+
+    long getBytes() {
+        return mBytes;
+    }
+
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        src.position(src.limit());
+        mWrites++;
+        mBytes += n;
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += srcs[i].remaining();
+            srcs[i].position(srcs[i].limit());
+        }
+        mWrites++;
+        mBytes += n;
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen() {
+        return true;
+    }
+
+    public void close() {
+    }
+}
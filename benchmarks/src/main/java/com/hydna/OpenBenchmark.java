@@ -0,0 +1,99 @@
+package com.hydna;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Opening and closing channels from several threads at once, each a
+ *  burst of paths of its own, all on one connection. An anchor channel
+ *  keeps the connection open, so that opens measure the channel
+ *  registry and the round trip rather than connecting.
+ *
+ *  Scores are per open and close, from each thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class OpenBenchmark {
+
+    static final int PATHS = 8;
+
+    private static final AtomicInteger mThreads = new AtomicInteger();
+
+    @State(Scope.Benchmark)
+    public static class Anchor {
+
+        private final Semaphore mOpened = new Semaphore(0);
+        private final Semaphore mClosed = new Semaphore(0);
+        private final Semaphore mMessages = new Semaphore(0);
+
+        private ProbeChannel mChannel;
+
+        @Setup(Level.Trial)
+        public void open(Server server) throws Exception {
+            mChannel = new ProbeChannel(mOpened, mClosed, mMessages);
+            mChannel.connect(server.getUrl("open-anchor"),
+                             ChannelMode.READWRITE);
+            ProbeChannel.await(mOpened, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            // The server may have been stopped first
+            if (mChannel.isConnected()) {
+                mChannel.close();
+                ProbeChannel.await(mClosed, 1);
+            }
+        }
+    }
+
+    private final Semaphore mOpened = new Semaphore(0);
+    private final Semaphore mClosed = new Semaphore(0);
+    private final Semaphore mMessages = new Semaphore(0);
+
+    private final ProbeChannel[] mChannels = new ProbeChannel[PATHS];
+    private String mPrefix;
+
+    @Setup
+    public void setup() {
+        mPrefix = "open-" + mThreads.getAndIncrement() + "-";
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public void openClose(Server server, Anchor anchor) throws Exception {
+        for (int i = 0; i < PATHS; i++) {
+            mChannels[i] = new ProbeChannel(mOpened, mClosed, mMessages);
+            mChannels[i].connect(server.getUrl(mPrefix + i),
+                                 ChannelMode.READWRITE);
+        }
+
+        ProbeChannel.await(mOpened, PATHS);
+
+        for (int i = 0; i < PATHS; i++) {
+            mChannels[i].close();
+        }
+
+        ProbeChannel.await(mClosed, PATHS);
+    }
+}
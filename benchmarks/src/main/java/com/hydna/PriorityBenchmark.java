@@ -0,0 +1,104 @@
+package com.hydna;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  An urgent frame queued behind a backlog of bulk frames, taken from
+ *  the FrameQueue and from the single FIFO queue it replaced. Frames
+ *  taken ahead of the urgent one are queued again, so the backlog stays
+ *  the same.
+ *
+ *  The framesAhead counter is the number of frames written before the
+ *  urgent ones, which is what delays them on the wire. Both counters are
+ *  totals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriorityBenchmark {
+
+    @Param({ "0", "1024" })
+    public int backlog;
+
+    private FrameQueue mLanes;
+    private LinkedBlockingQueue<Frame> mFifo;
+
+    private Frame mUrgent;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Ahead {
+
+        public long framesAhead;
+        public long urgentFrames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            framesAhead = 0;
+            urgentFrames = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mLanes = new FrameQueue();
+        mFifo = new LinkedBlockingQueue<Frame>();
+        mUrgent = Frame.dataFrame(1, Frame.BINARY, 0, new byte[64]);
+
+        for (int i = 0; i < backlog; i++) {
+            Frame bulk = Frame.dataFrame(2, Frame.BINARY, 7, new byte[1024]);
+            mLanes.add(bulk);
+            mFifo.add(bulk);
+        }
+    }
+
+    @Benchmark
+    public Frame frameQueue(Ahead ahead) {
+        Frame frame;
+
+        mLanes.add(mUrgent);
+
+        while ((frame = mLanes.poll()) != mUrgent) {
+            ahead.framesAhead++;
+            mLanes.add(frame);
+        }
+
+        ahead.urgentFrames++;
+
+        return frame;
+    }
+
+    @Benchmark
+    public Frame fifo(Ahead ahead) {
+        Frame frame;
+
+        mFifo.add(mUrgent);
+
+        while ((frame = mFifo.poll()) != mUrgent) {
+            ahead.framesAhead++;
+            mFifo.add(frame);
+        }
+
+        ahead.urgentFrames++;
+
+        return frame;
+    }
+}
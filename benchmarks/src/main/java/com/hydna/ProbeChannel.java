@@ -0,0 +1,52 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  A channel that signals its events on semaphores, which may be shared
+ *  by several channels to wait for all of them.
+ */
+class ProbeChannel extends Channel {
+
+    static final long TIMEOUT = 10000;
+
+    private final Semaphore mOpened;
+    private final Semaphore mClosed;
+    private final Semaphore mMessages;
+
+    ProbeChannel(Semaphore opened, Semaphore closed, Semaphore messages) {
+        super(new DirectDispatcher());
+        mOpened = opened;
+        mClosed = closed;
+        mMessages = messages;
+    }
+
+    @Override
+    public void onConnect(ChannelEvent event) {
+        mOpened.release();
+    }
+
+    @Override
+    public void onMessage(Channel channel, ByteBuffer data, int ctype, int priority) {
+        mMessages.release();
+    }
+
+    @Override
+    public void onClose(ChannelCloseEvent event) {
+        mClosed.release();
+    }
+
+    /**
+     *  Wait for a number of events.
+     *
+     *  @param events The semaphore the events are signaled on.
+     *  @param count The number of events.
+     */
+    static void await(Semaphore events, int count) throws InterruptedException {
+        if (events.tryAcquire(count, TIMEOUT, TimeUnit.MILLISECONDS) == false) {
+            throw new IllegalStateException("Timed out waiting for the server");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Parsing inbound frames from an in-memory channel that returns at most
+ *  readSize bytes per read, so frames straddle reads as they do on a
+ *  socket. The FrameParser reads as much as fits its buffer and returns
+ *  views of it; the old receive loop read the header and then the
+ *  payload of each frame into buffers of their own, and copied the
+ *  payload once more into the frame.
+ *
+ *  Scores are per frame. The reads and frames counters are totals, the
+ *  reads each a system call on a socket. Run with -prof gc for the bytes
+ *  allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+
+    static final int FRAMES = 1024;
+
+    @Param({ "64", "1024", "16384" })
+    public int payloadSize;
+
+    @Param({ "65536" })
+    public int readSize;
+
+    private ReplayChannel mInput;
+    private FrameParser mParser;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Reads {
+
+        public long reads;
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reads = 0;
+            frames = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mInput = new ReplayChannel(ReplayChannel.encodeFrames(FRAMES, payloadSize),
+                                   readSize);
+        mParser = new FrameParser(new BufferPool(FrameParser.DEFAULT_BUFFER_SIZE, 4, false));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int parser(Reads reads) throws IOException {
+        int bytes = 0;
+        Frame frame;
+
+        mInput.rewind();
+
+        long before = mInput.getReads();
+
+        while (mParser.read(mInput) > 0) {
+            while ((frame = mParser.next()) != null) {
+                bytes += frame.getPayload().remaining();
+            }
+        }
+
+        reads.reads += mInput.getReads() - before;
+        reads.frames += FRAMES;
+
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int legacy(Reads reads) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + 2);
+        header.order(ByteOrder.BIG_ENDIAN);
+
+        int bytes = 0;
+
+        mInput.rewind();
+
+        long before = mInput.getReads();
+
+        for (int i = 0; i < FRAMES; i++) {
+            header.clear();
+            while (header.hasRemaining()) {
+                mInput.read(header);
+            }
+            header.flip();
+
+            int size = (int)header.getShort() & 0xFFFF;
+            ByteBuffer data = ByteBuffer.allocate(size - Frame.HEADER_SIZE);
+            data.order(ByteOrder.BIG_ENDIAN);
+
+            while (data.hasRemaining()) {
+                mInput.read(data);
+            }
+            data.flip();
+
+            Frame frame = Frame.fromHeader(header, data);
+            bytes += frame.getPayload().remaining();
+        }
+
+        reads.reads += mInput.getReads() - before;
+        reads.frames += FRAMES;
+
+        return bytes;
+    }
+}
@@ -0,0 +1,83 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *  A channel that returns a fixed stream of bytes, at most a given
+ *  number per read, standing in for a socket with data waiting. Counts
+ *  the read calls made.
+ */
+class ReplayChannel implements ReadableByteChannel {
+
+    private final ByteBuffer mData;
+    private final int mReadSize;
+
+    private long mReads = 0;
+
+    /**
+     *  Initializes a new ReplayChannel.
+     *
+     *  @param data The bytes to return.
+     *  @param readSize The max number of bytes returned per read, like
+     *                  the receive buffer of a socket.
+     */
+    ReplayChannel(byte[] data, int readSize) {
+        mData = ByteBuffer.wrap(data);
+        mReadSize = readSize;
+    }
+
+    /**
+     *  Start over from the first byte.
+     */
+    void rewind() {
+        mData.clear();
+    }
+
+    long getReads() {
+        return mReads;
+    }
+
+    public int read(ByteBuffer dst) {
+        mReads++;
+
+        if (mData.hasRemaining() == false) {
+            return -1;
+        }
+
+        int n = Math.min(Math.min(dst.remaining(), mReadSize),
+                         mData.remaining());
+        int limit = mData.limit();
+
+        mData.limit(mData.position() + n);
+        dst.put(mData);
+        mData.limit(limit);
+
+        return n;
+    }
+
+    public boolean isOpen() {
+        return true;
+    }
+
+    public void close() {
+    }
+
+    /**
+     *  Encode DATA frames back to back, as a server would send them.
+     *
+     *  @param frames The number of frames.
+     *  @param payloadSize The payload size of each frame.
+     *  @return The encoded frames.
+     */
+    static byte[] encodeFrames(int frames, int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        ByteBuffer out = ByteBuffer.allocate(frames * (FrameEncoder.HEADER_LENGTH + payloadSize));
+
+        for (int i = 0; i < frames; i++) {
+            out.put(Frame.dataFrame(1, Frame.BINARY, 0, payload).getBytes());
+        }
+
+        return out.array();
+    }
+}
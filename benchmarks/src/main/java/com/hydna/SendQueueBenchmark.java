@@ -0,0 +1,128 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  The sender loop: a burst of frames is queued, then taken from the
+ *  FrameQueue and written through the FrameEncoder in batches of at
+ *  most batchFrames. With batchFrames 1 every frame is one write, as
+ *  before gathering writes.
+ *
+ *  Scores are per frame. The writes and frames counters are totals, the
+ *  writes each a system call on a socket. Writes to the in-memory sink
+ *  cost nothing, so fewer writes only pay off on a real socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendQueueBenchmark {
+
+    static final int BURST = 256;
+
+    @Param({ "1", "64" })
+    public int batchFrames;
+
+    @Param({ "64", "1024" })
+    public int payloadSize;
+
+    private FrameQueue mQueue;
+    private FrameEncoder mEncoder;
+    private NullChannel mSink;
+
+    private ByteBuffer[] mPayloads;
+    private Frame[] mFrames;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Writes {
+
+        public long writes;
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+            frames = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        BufferPool headers =
+            new BufferPool(batchFrames * FrameEncoder.HEADER_LENGTH, 1, false);
+
+        mQueue = new FrameQueue();
+        mEncoder = new FrameEncoder(null,
+                                    headers,
+                                    batchFrames,
+                                    Connection.DEFAULT_SEND_BATCH_BYTES);
+        mSink = new NullChannel();
+
+        mPayloads = new ByteBuffer[BURST];
+        mFrames = new Frame[BURST];
+
+        for (int i = 0; i < BURST; i++) {
+            mPayloads[i] = ByteBuffer.allocate(payloadSize);
+            mFrames[i] = Frame.dataFrame(1, Frame.BINARY, i % 8, mPayloads[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEncoder.dispose();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst(Writes writes) throws IOException {
+        long before = mSink.getWrites();
+
+        for (int i = 0; i < BURST; i++) {
+            // Writing consumes the payload
+            mPayloads[i].clear();
+            mQueue.add(mFrames[i]);
+        }
+
+        Frame frame;
+
+        while ((frame = mQueue.poll()) != null) {
+            mEncoder.add(frame);
+
+            if (mEncoder.isFull()) {
+                flush();
+            }
+        }
+
+        flush();
+
+        writes.writes += mSink.getWrites() - before;
+        writes.frames += BURST;
+    }
+
+    private void flush() throws IOException {
+        while (mEncoder.hasRemaining()) {
+            mEncoder.write(mSink);
+        }
+    }
+}
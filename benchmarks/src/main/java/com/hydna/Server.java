@@ -0,0 +1,43 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hydna.tools.LocalServer;
+
+/**
+ *  A LocalServer echoing on localhost, with connections served by threads
+ *  per connection or by selector threads.
+ */
+@State(Scope.Benchmark)
+public class Server {
+
+    @Param({ "blocking", "selector" })
+    public String io;
+
+    private LocalServer mServer;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        Connection.setSelectorThreads(io.equals("selector") ? 2 : 0);
+        mServer = new LocalServer(0, LocalServer.ECHO).start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        mServer.stop();
+        Connection.setSelectorThreads(0);
+    }
+
+    URL getUrl(String path) throws MalformedURLException {
+        return new URL("http", "127.0.0.1", mServer.getPort(), "/" + path);
+    }
+}
@@ -0,0 +1,244 @@
+package com.hydna;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.Enumeration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hydna.tools.LocalServer;
+
+/**
+ *  TLS against a LocalServer with a key made for the run.
+ *
+ *  handshake opens a channel on a new connection, which takes a full
+ *  TLS handshake when the client has no session to resume, and a
+ *  resumed one when it has. Scores are per open.
+ *
+ *  echo sends a burst of messages on one channel and waits for the
+ *  echoes, over TLS and over a plain connection. Scores are per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmark {
+
+    static final int BURST = 64;
+
+    static final String STORE_PASSWORD = "secret";
+
+    /**
+     *  A LocalServer echoing on localhost, over TLS unless plain.
+     */
+    @State(Scope.Benchmark)
+    public static class TlsServer {
+
+        private File mKeyStore;
+        private SSLContext mContext;
+        private LocalServer mServer;
+
+        void start(boolean secure) throws Exception {
+            if (secure) {
+                mKeyStore = createKeyStore();
+                mContext = LocalServer.createContext(mKeyStore.getPath(),
+                                                     STORE_PASSWORD);
+                Connection.setSSLContext(mContext);
+            }
+
+            InetSocketAddress address =
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+
+            mServer = new LocalServer(address, LocalServer.ECHO, mContext).start();
+        }
+
+        void stop() throws IOException {
+            mServer.stop();
+            Connection.setSSLContext(null);
+
+            if (mKeyStore != null) {
+                mKeyStore.delete();
+            }
+        }
+
+        URL getUrl(String path) throws IOException {
+            return new URL(mContext == null ? "http" : "https",
+                           "127.0.0.1",
+                           mServer.getPort(),
+                           "/" + path);
+        }
+
+        /**
+         *  Drop the TLS sessions the client could resume.
+         */
+        void forgetSessions() {
+            SSLSessionContext sessions = mContext.getClientSessionContext();
+            Enumeration<byte[]> ids = sessions.getIds();
+
+            while (ids.hasMoreElements()) {
+                SSLSession session = sessions.getSession(ids.nextElement());
+
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Handshake extends TlsServer {
+
+        @Param({ "full", "resumed" })
+        public String session;
+
+        private final Semaphore mOpened = new Semaphore(0);
+        private final Semaphore mClosed = new Semaphore(0);
+        private final Semaphore mMessages = new Semaphore(0);
+
+        private ProbeChannel mChannel;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            start(true);
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            if (session.equals("full")) {
+                forgetSessions();
+            }
+
+            mChannel = new ProbeChannel(mOpened, mClosed, mMessages);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws Exception {
+            // The connection goes with its only channel
+            mChannel.close();
+            ProbeChannel.await(mClosed, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Echo extends TlsServer {
+
+        @Param({ "tls", "plain" })
+        public String transport;
+
+        @Param({ "64", "16384" })
+        public int payloadSize;
+
+        private final Semaphore mOpened = new Semaphore(0);
+        private final Semaphore mClosed = new Semaphore(0);
+        private final Semaphore mMessages = new Semaphore(0);
+
+        private ProbeChannel mChannel;
+        private byte[] mMessage;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            start(transport.equals("tls"));
+
+            mMessage = new byte[payloadSize];
+            mChannel = new ProbeChannel(mOpened, mClosed, mMessages);
+            mChannel.connect(getUrl("echo"), ChannelMode.READWRITE);
+            ProbeChannel.await(mOpened, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            mChannel.close();
+            ProbeChannel.await(mClosed, 1);
+            stop();
+        }
+    }
+
+    @Benchmark
+    public void handshake(Handshake state) throws Exception {
+        state.mChannel.connect(state.getUrl("handshake"), ChannelMode.READ);
+        ProbeChannel.await(state.mOpened, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void echo(Echo state) throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            state.mChannel.send(state.mMessage);
+        }
+
+        ProbeChannel.await(state.mMessages, BURST);
+    }
+
+    /**
+     *  Create a key store with a self-signed key for 127.0.0.1, with the
+     *  keytool of the running JVM.
+     */
+    static File createKeyStore() throws IOException, GeneralSecurityException {
+        File store = File.createTempFile("hydna-bench", ".jks");
+
+        // keytool will not write over a file
+        store.delete();
+
+        String keytool = System.getProperty("java.home") +
+                         File.separator + "bin" + File.separator + "keytool";
+
+        Process process = new ProcessBuilder(keytool,
+                                             "-genkeypair",
+                                             "-keyalg", "RSA",
+                                             "-dname", "CN=localhost",
+                                             "-ext", "san=ip:127.0.0.1,dns:localhost",
+                                             "-validity", "1",
+                                             "-keystore", store.getPath(),
+                                             "-storepass", STORE_PASSWORD,
+                                             "-keypass", STORE_PASSWORD)
+            .redirectErrorStream(true)
+            .start();
+
+        InputStream output = process.getInputStream();
+
+        while (output.read() != -1) {
+            // Drained, so that keytool cannot block on a full pipe
+        }
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new GeneralSecurityException("keytool failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool");
+        }
+
+        return store;
+    }
+}
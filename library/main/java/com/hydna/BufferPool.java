@@ -0,0 +1,99 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ *  A bounded pool of equally sized byte buffers.
+ *
+ *  Buffers are handed out cleared and in network byte order. Releasing
+ *  a buffer when the pool is full simply drops it.
+ */
+class BufferPool {
+
+    private final int mBufferSize;
+    private final boolean mDirect;
+
+    // Free buffers are kept on a stack, so that releasing does not
+    // allocate
+    private final ByteBuffer[] mFree;
+    private int mFreeCount = 0;
+
+    // Buffers created by poll
+    private int mCreated = 0;
+
+    BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        mBufferSize = bufferSize;
+        mDirect = direct;
+        mFree = new ByteBuffer[maxPooled];
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    boolean isDirect() {
+        return mDirect;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+
+        synchronized (mFree) {
+            if (mFreeCount > 0) {
+                buffer = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+            }
+        }
+
+        return buffer == null ? allocate() : buffer;
+    }
+
+    /**
+     *  Take a buffer, without creating more buffers than the pool can
+     *  hold. Buffers that are never released still count, so the pool
+     *  then serves fewer.
+     *
+     *  @return A buffer, or null if all of them are in use.
+     */
+    ByteBuffer poll() {
+        synchronized (mFree) {
+            if (mFreeCount > 0) {
+                ByteBuffer buffer = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+                return buffer;
+            }
+
+            if (mCreated == mFree.length) {
+                return null;
+            }
+
+            mCreated++;
+        }
+
+        return allocate();
+    }
+
+    private ByteBuffer allocate() {
+        ByteBuffer buffer = mDirect ? ByteBuffer.allocateDirect(mBufferSize)
+                                    : ByteBuffer.allocate(mBufferSize);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer == null ||
+            buffer.capacity() != mBufferSize ||
+            buffer.isDirect() != mDirect) {
+            return;
+        }
+
+        buffer.clear();
+
+        synchronized (mFree) {
+            if (mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = buffer;
+            }
+        }
+    }
+}
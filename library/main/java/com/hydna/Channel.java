@@ -1,13 +1,22 @@
 package com.hydna;
 
-import android.os.Handler;
-import android.os.Message;
 import android.os.Looper;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
 import java.nio.ByteBuffer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -23,6 +32,46 @@ import java.net.URL;
  */
 public class Channel {
 
+    static final int EVENT_ERROR = 0x99;
+    static final int EVENT_BATCH = 0x98;
+    static final int EVENT_DRAIN = 0x97;
+    static final int EVENT_RECONNECTING = 0x96;
+    static final int EVENT_RECONNECTED = 0x95;
+
+    // Max number of messages coalesced into one batch
+    static final int MAX_BATCH_SIZE = 256;
+
+    // Streamed messages are split into chunks, which have the CHUNK bit
+    // of the content type set and start with the stream id. The top bits
+    // of the id mark the first and the last chunk.
+    static final int CHUNK_HEADER_SIZE = 4;
+    static final int CHUNK_FIRST = 0x40000000;
+    static final int CHUNK_LAST = 0x80000000;
+    static final int STREAM_ID_MASK = 0x3FFFFFFF;
+    static final int STREAM_CHUNK_SIZE =
+        Frame.PAYLOAD_MAX_LIMIT - CHUNK_HEADER_SIZE;
+
+    // Max number of bytes assembled from streams by default
+    static final int DEFAULT_MAX_STREAM_SIZE = 0x1000000;
+
+    // Max number of bytes a stream keeps queued
+    static final int STREAM_WINDOW = 0x40000;
+
+    // Text that encodes to at most this many bytes is sent from a pool
+    static final int TEXT_BUFFER_SIZE = 0x200;
+
+    private static final BufferPool mTextPool =
+        new BufferPool(TEXT_BUFFER_SIZE, 256, false);
+
+    // Starts anywhere, so that streams from other clients on the same
+    // path are unlikely to have the same ids
+    private static final AtomicInteger mStreamIds =
+        new AtomicInteger(new Random().nextInt());
+
+    // Whether each channel class overrides the raw message callback
+    private static final ConcurrentHashMap<Class<?>, Boolean> mRawMessageClasses =
+        new ConcurrentHashMap<Class<?>, Boolean>();
+
     private int mPtr = 0;
     private String mPath;
     private byte[] mBinPath;
@@ -34,13 +83,187 @@ public class Channel {
 
     private Connection mConnection = null;
 
-    final Handler mHandler;
+    final Dispatcher mDispatcher;
+
+    private volatile boolean mBatchDelivery = false;
+    private volatile int mMaxStreamSize = DEFAULT_MAX_STREAM_SIZE;
+    private StreamAssembler mAssembler;
+    private volatile boolean mReuseEvents = false;
+    private volatile boolean mPooledBuffers = false;
+    private ChannelEvent mEvent;
+    private PooledBuffer mDelivering;
+    private final Object mBatchLock = new Object();
+    private ArrayList<Frame> mBatch;
+
+    private volatile int mSendBufferHigh = 0;
+    private volatile int mSendBufferLow = 0;
+    private volatile int mOverflowPolicy = OverflowPolicy.THROW;
+
+    private final AtomicLong mBufferedAmount = new AtomicLong();
+    private final AtomicBoolean mNeedDrain = new AtomicBoolean();
+    private final Object mSendLock = new Object();
+    private final AtomicInteger mStreamWaiters = new AtomicInteger();
+
+    private final StripedCounter mCounters = new StripedCounter(ChannelStats.COUNTERS);
 
     public void onConnect(ChannelEvent event) {}
+
+    /**
+     *  Called with each message received, by the default
+     *  onMessage(Channel, ByteBuffer, int, int). The data of broadcast
+     *  messages is read-only, see ChannelEvent.getData.
+     */
     public void onMessage(ChannelEvent event) {}
+
     public void onSignal(ChannelEvent event) {}
     public void onClose(ChannelCloseEvent event) {}
 
+    /**
+     *  Called with each message received. The default implementation
+     *  wraps the message in an event and calls onMessage(ChannelEvent).
+     *  Overriding this instead saves that event, and with reusable events
+     *  enabled a message is received without any allocation at all.
+     *
+     *  With reusable events, the data is only valid until the method
+     *  returns, and must be copied to be kept. Broadcast messages are
+     *  shared by every channel on the connection and are read-only, so
+     *  their data has no accessible array.
+     *
+     *  Batched messages reach this through the default onMessages, and
+     *  streamed messages through the default onMessageChunk.
+     *
+     *  @param channel The channel, this.
+     *  @param data The content.
+     *  @param ctype The content type, see ContentType.
+     *  @param priority The priority of the message.
+     */
+    public void onMessage(Channel channel, ByteBuffer data, int ctype, int priority) {
+        onMessage(createEvent(ctype, priority, data));
+    }
+
+    /**
+     *  Called when the send buffer has drained below its low watermark,
+     *  after a send hit the high watermark of the channel or of its
+     *  connection.
+     */
+    public void onDrain() {}
+
+    /**
+     *  Called when the connection of the channel is lost and is about to
+     *  be reopened, see Connection.setReconnectPolicy. The channel stays
+     *  open, and messages sent meanwhile are queued.
+     *
+     *  @param attempt The number of the coming attempt, starting at 1.
+     *  @param delay The time until the attempt, in ms.
+     */
+    public void onReconnecting(int attempt, long delay) {}
+
+    /**
+     *  Called when the connection of the channel is back, before the
+     *  channel is opened again on the server. Should the server deny
+     *  that, the channel is closed with an error.
+     *
+     *  @param attempts The number of attempts it took.
+     *  @param downtime The time from losing the connection until it was
+     *                  back, in ms.
+     */
+    public void onReconnected(int attempts, long downtime) {}
+
+    /**
+     *  Called with each chunk of a message sent with sendStream, as it
+     *  arrives. Chunks of messages streamed at the same time arrive
+     *  interleaved, and are told apart by their stream id.
+     *
+     *  The default implementation assembles the chunks, and passes each
+     *  whole message to onMessage(Channel, ByteBuffer, int, int). Streams
+     *  that do not fit the max stream size are discarded, see
+     *  setMaxStreamSize. Override this to take the chunks as they come
+     *  instead, with memory use up to the application.
+     *
+     *  @param chunk The chunk, which may be empty.
+     *  @param stream The id of the stream.
+     *  @param first True if this is the first chunk of the message.
+     *  @param last True if this is the last chunk of the message.
+     */
+    public void onMessageChunk(ChannelEvent chunk,
+                               int stream,
+                               boolean first,
+                               boolean last) {
+        if (mAssembler == null) {
+            mAssembler = new StreamAssembler(mCounters);
+        }
+
+        ByteBuffer message = mAssembler.add(stream,
+                                            first,
+                                            last,
+                                            chunk.getData(),
+                                            mMaxStreamSize);
+
+        if (message != null) {
+            onMessage(this, message, chunk.getContentType(),
+                      chunk.getPriority());
+        }
+    }
+
+    /**
+     *  Called with a batch of messages when batch delivery is enabled.
+     *  The default implementation calls onMessage(Channel, ByteBuffer,
+     *  int, int) for each of them if a subclass overrides it, and
+     *  otherwise onMessage(ChannelEvent).
+     *
+     *  @param events The messages, in the order they were received.
+     */
+    public void onMessages(List<ChannelEvent> events) {
+        boolean raw = overridesRawMessage(getClass());
+
+        for (int i = 0, n = events.size(); i < n; i++) {
+            onMessage(events.get(i), raw);
+        }
+    }
+
+    /**
+     *  Deliver a message that already has its event. The event itself
+     *  goes to onMessage(ChannelEvent), so that retaining it retains its
+     *  pooled buffer.
+     *
+     *  @param event The message.
+     *  @param raw True to deliver it through onMessage(Channel,
+     *             ByteBuffer, int, int) instead.
+     */
+    void onMessage(ChannelEvent event, boolean raw) {
+        if (raw) {
+            onMessage(this, event.getData(), event.getContentType(),
+                      event.getPriority());
+        } else {
+            onMessage(event);
+        }
+    }
+
+    /**
+     *  Checks if a channel class overrides onMessage(Channel, ByteBuffer,
+     *  int, int). Looked up once per class.
+     */
+    static boolean overridesRawMessage(Class<?> type) {
+        Boolean overrides = mRawMessageClasses.get(type);
+
+        if (overrides == null) {
+            try {
+                overrides = type.getMethod("onMessage",
+                                           Channel.class,
+                                           ByteBuffer.class,
+                                           int.class,
+                                           int.class)
+                    .getDeclaringClass() != Channel.class;
+            } catch (NoSuchMethodException e) {
+                overrides = Boolean.FALSE;
+            }
+
+            mRawMessageClasses.put(type, overrides);
+        }
+
+        return overrides;
+    }
+
 
     /**
      *  Initializes a new Channel instance with the Main Looper.
@@ -65,48 +288,172 @@ public class Channel {
      *  Initializes a new Channel instance
      */
     public Channel(Looper looper) {
-        mHandler = new Handler(looper) {
-            @Override
-            public void handleMessage(Message msg) {
+        this(new LooperDispatcher(looper));
+    }
 
-                switch (msg.what) {
+    /**
+     *  Initializes a new Channel instance that delivers its events
+     *  through the specified Dispatcher.
+     *
+     *  @param dispatcher The Dispatcher to run callbacks on.
+     */
+    public Channel(Dispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("Dispatcher cannot be null");
+        }
 
-                    case Frame.RESOLVE:
-                        handleResolveFrame((Frame)msg.obj);
-                        break;
+        mDispatcher = dispatcher;
+    }
 
-                    case Frame.OPEN:
-                        handleOpenFrame((Frame)msg.obj);
-                        break;
 
-                    case Frame.DATA:
-                        handleDataFrame((Frame)msg.obj);
-                        break;
+    /**
+     *  Get the underlying Path for this Channel
+     *
+     *  @return The path of this Channel.
+     */
+    public String getPath() {
+        return mPath;
+    }
 
-                    case Frame.SIGNAL:
-                        handleSignalFrame((Frame)msg.obj);
-                        break;
+    /**
+     *  Enable or disable batch delivery. When enabled, messages received
+     *  while the previous ones are still waiting to be delivered are
+     *  coalesced and handed to onMessages in one dispatch, instead of
+     *  being dispatched one by one.
+     *
+     *  @param enabled True to enable batch delivery.
+     */
+    public void setBatchDelivery(boolean enabled) {
+        mBatchDelivery = enabled;
+    }
 
-                    case 0x99:
-                        destroy((ChannelException)msg.obj, null);
-                        break;
+    /**
+     *  Set the max number of bytes the default onMessageChunk holds for
+     *  the streamed messages it assembles. A stream that would take more
+     *  is discarded, and counted in ChannelStats.getStreamsDiscarded.
+     *
+     *  @param max The max number of bytes.
+     */
+    public void setMaxStreamSize(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Max cannot be negative");
+        }
 
-                    default:
-                        super.handleMessage(msg);
-                        break;
-                }
-            }
-        };
+        mMaxStreamSize = max;
     }
 
+    /**
+     *  Enable or disable reusable events. When enabled, the same event
+     *  object is passed to every call of onMessage, onMessageChunk and
+     *  onSignal, and the data of messages is handed over without taking
+     *  a view of it first. Events and their data are then only valid
+     *  until the callback returns.
+     *
+     *  With a DirectDispatcher, received messages are also not copied
+     *  out of the connection's read buffer.
+     *
+     *  @param enabled True to enable reusable events.
+     */
+    public void setReusableEvents(boolean enabled) {
+        mReuseEvents = enabled;
+    }
 
     /**
-     *  Get the underlying Path for this Channel
+     *  Enable or disable pooled buffers. When enabled, the data of a
+     *  received message is a slice of the read buffer of the connection,
+     *  which goes back to the pool once every message in it is done
+     *  with, see Connection.setReadBufferPool. The data of an event is
+     *  only valid until the callback returns, unless the event is kept
+     *  with ChannelEvent.retain and later released.
      *
-     *  @return The path of this Channel.
+     *  A retained message keeps its whole read buffer from the pool, so
+     *  messages should not be retained for long. When the pool has
+     *  direct buffers, the data has no backing array.
+     *
+     *  @param enabled True to enable pooled buffers.
      */
-    public String getPath() {
-        return mPath;
+    public void setPooledBuffers(boolean enabled) {
+        mPooledBuffers = enabled;
+    }
+
+    /**
+     *  Limit the number of bytes this channel may have queued for
+     *  sending. Messages and signals sent while the high watermark is
+     *  reached, on the channel or on its connection, are handled
+     *  according to the policy. onDrain is called once the queued
+     *  amount is back at the low watermark.
+     *
+     *  @param highWatermark The max number of queued bytes, or 0 for no
+     *                       limit.
+     *  @param lowWatermark The level at which sends resume.
+     *  @param policy The OverflowPolicy.
+     */
+    public void setSendBufferLimits(int highWatermark,
+                                    int lowWatermark,
+                                    int policy) {
+        if (highWatermark < 0 || lowWatermark < 0 ||
+            lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Invalid watermarks");
+        }
+
+        if (policy < OverflowPolicy.THROW || policy > OverflowPolicy.DROP) {
+            throw new IllegalArgumentException("Invalid overflow policy");
+        }
+
+        mSendBufferLow = lowWatermark;
+        mSendBufferHigh = highWatermark;
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     *  Returns the number of bytes of messages and signals that are
+     *  queued but not yet written to the connection.
+     *
+     *  @return The number of buffered bytes.
+     */
+    public long bufferedAmount() {
+        return mBufferedAmount.get();
+    }
+
+    /**
+     *  Returns a snapshot of the message counts of the channel.
+     *
+     *  @return The statistics.
+     */
+    public ChannelStats getStats() {
+        return new ChannelStats(mCounters);
+    }
+
+    /**
+     *  Returns a snapshot of the statistics of the connection that the
+     *  channel uses, which may be shared with other channels.
+     *
+     *  @return The statistics, or null if the channel is not open.
+     */
+    public ConnectionStats getConnectionStats() {
+        Connection connection = mConnection;
+
+        if (connection == null) {
+            return null;
+        }
+
+        return connection.getStats();
+    }
+
+    /**
+     *  Returns the smoothed round-trip time to the server, measured on
+     *  channel opens and heartbeats of the connection.
+     *
+     *  @return The round-trip time in microseconds, or -1 if unknown.
+     */
+    public long getRoundTripTime() {
+        Connection connection = mConnection;
+
+        if (connection == null) {
+            return -1;
+        }
+
+        return connection.getRoundTripTime();
     }
 
     /**
@@ -170,9 +517,9 @@ public class Channel {
      */
     public void connect(String url, int mode)
         throws MalformedURLException, ChannelException {
-    	 Pattern p = Pattern.compile("[a-zA-Z]://");
+    	 Pattern p = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.-]*://");
     	 Matcher m = p.matcher(url);
-    	 connect(new URL(m.matches() == false ? "http://" + url : url), mode);
+    	 connect(new URL(m.lookingAt() == false ? "http://" + url : url), mode);
     }
 
     /**
@@ -183,6 +530,19 @@ public class Channel {
      *  @param mode The mode in which to open the channel.
      */
     public void connect(URL url, int mode) throws ChannelException {
+        connect(url, mode, null);
+    }
+
+    /**
+     *  Connects the channel. If resolves is not null, the RESOLVE frame
+     *  for the channel, if needed, is added to it instead of queued.
+     *
+     *  @param url The URL to connect to,
+     *  @param mode The mode in which to open the channel.
+     *  @param resolves The list to add the RESOLVE frame to, or null.
+     */
+    void connect(URL url, int mode, List<Frame> resolves)
+        throws ChannelException {
 
         if (isConnected()) {
             throw new ChannelException("Already connecting/connected");
@@ -202,12 +562,9 @@ public class Channel {
 
         String tokens = "";
     
-        if (url.getProtocol().equals("http") == false) {
-            if (url.getProtocol().equals("https")) {
-                throw new ChannelException("The protocol HTTPS is not supported");
-            } else {
-                throw new ChannelException("Bad protocol: '" + url.getProtocol() + "'");	
-            }
+        if (url.getProtocol().equals("http") == false &&
+            url.getProtocol().equals("https") == false) {
+            throw new ChannelException("Bad protocol: '" + url.getProtocol() + "'");	
         }
     
         mPath = url.getPath();
@@ -230,12 +587,57 @@ public class Channel {
         	tokens = null;
         }
 
-        mConnection = Connection.getConnection(url.getProtocol(),
-                                               url.getHost(),
-                                               url.getPort() == -1 ? url.getDefaultPort() : url.getPort(),
-                                               this);
+        Connection.getConnection(url.getProtocol(),
+                                 url.getHost(),
+                                 url.getPort() == -1 ? url.getDefaultPort() : url.getPort(),
+                                 this,
+                                 resolves);
+    }
+
+    /**
+     *  Connects several channels at once. The RESOLVE frames of all
+     *  channels are queued together, so that channels sharing a
+     *  connection are resolved and opened with as few writes and round
+     *  trips as possible.
+     *
+     *  @param channels The channels to connect.
+     *  @param urls The URL to connect each channel to.
+     *  @param mode The mode in which to open the channels.
+     */
+    public static void connectAll(Channel[] channels, URL[] urls, int mode)
+        throws ChannelException {
+
+        if (channels.length != urls.length) {
+            throw new IllegalArgumentException("Expected one URL per channel");
+        }
+
+        HashMap<Connection, ArrayList<Frame>> pending =
+            new HashMap<Connection, ArrayList<Frame>>();
+
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                ArrayList<Frame> resolves = new ArrayList<Frame>(1);
+
+                channels[i].connect(urls[i], mode, resolves);
+
+                if (resolves.isEmpty()) {
+                    continue;
+                }
+
+                Connection connection = channels[i].mConnection;
+                ArrayList<Frame> frames = pending.get(connection);
 
-        mConnection.enqueueFrame(Frame.resolveFrame(mBinPath));
+                if (frames == null) {
+                    pending.put(connection, resolves);
+                } else {
+                    frames.addAll(resolves);
+                }
+            }
+        } finally {
+            for (Map.Entry<Connection, ArrayList<Frame>> entry : pending.entrySet()) {
+                entry.getKey().enqueueFrames(entry.getValue());
+            }
+        }
     }
 
     /**
@@ -244,17 +646,50 @@ public class Channel {
      *  @param data The payload to write to the channel.
      */
     public void send(String message) throws ChannelException {
-        send(Frame.UTF8, 0, getBytes(message));
+        send(message, 0);
     }
 
     /**
      *  Sends a UTF8 data message to the channel with specified priority.
+     *  Messages with a lower priority value are sent before queued
+     *  messages with a higher one, 0 being the most urgent.
      *
      *  @param data The payload to write to the channel.
      *  @param priority The priority of the payload.
      */
     public void send(String message, int priority) throws ChannelException {
-        send(Frame.UTF8, priority, getBytes(message));
+        send((CharSequence)message, priority);
+    }
+
+    /**
+     *  Sends a UTF8 data message to the channel with priority 0. The
+     *  text is encoded once, straight into the outbound buffer, so a
+     *  StringBuilder can be reused as soon as the call returns.
+     *
+     *  @param message The text to write to the channel.
+     */
+    public void send(CharSequence message) throws ChannelException {
+        send(message, 0);
+    }
+
+    /**
+     *  Sends a UTF8 data message to the channel with specified priority.
+     *
+     *  @param message The text to write to the channel.
+     *  @param priority The priority of the payload.
+     */
+    public void send(CharSequence message, int priority)
+        throws ChannelException {
+
+        if (message == null || message.length() == 0) {
+            throw new ChannelException("Payload data cannot be zero-length");
+        }
+
+        checkSend(priority);
+
+        Frame frame = Frame.dataFrame(mPtr, Frame.UTF8, priority, encode(message));
+        frame.setPool(mTextPool);
+        enqueueBuffered(frame);
     }
 
     /**
@@ -268,6 +703,8 @@ public class Channel {
 
     /**
      *  Sends a binary data message with specified priority.
+     *  Messages with a lower priority value are sent before queued
+     *  messages with a higher one, 0 being the most urgent.
      *
      *  @param data The payload to write to the channel.
      *  @param priority The priority of the payload.
@@ -278,21 +715,152 @@ public class Channel {
 
     /**
      *  Sends a binary data message to the channel with priority 0.
+     *  The remaining content of the buffer is sent by reference and must
+     *  not be modified until it is written.
      *
      *  @param data The payload to write to the channel.
      */
     public void send(ByteBuffer buffer) throws ChannelException {
-        send(Frame.BINARY, 0, getBytes(buffer));
+        send(Frame.BINARY, 0, buffer);
     }
 
     /**
      *  Sends a binary data message with specified priority.
+     *  The remaining content of the buffer is sent by reference and must
+     *  not be modified until it is written.
      *
      *  @param data The payload to write to the channel.
      *  @param priority The priority of the payload.
      */
     public void send(ByteBuffer buffer, int priority) throws ChannelException {
-        send(Frame.BINARY, priority, getBytes(buffer));
+        send(Frame.BINARY, priority, buffer);
+    }
+
+    /**
+     *  Sends a binary message of any size, split into chunks, which the
+     *  receiving channels pass to onMessageChunk.
+     *
+     *  @param buffer The message, from its position to its limit.
+     */
+    public void sendStream(ByteBuffer buffer) throws ChannelException {
+        sendStream(buffer, 0);
+    }
+
+    /**
+     *  Sends a binary message of any size, split into chunks, with
+     *  specified priority. Each chunk is copied once. Blocks while the
+     *  chunks queued by the channel exceed the stream window, whatever
+     *  the overflow policy, so memory use stays bounded. Throws instead
+     *  if it would block the thread that writes the connection, see
+     *  OverflowPolicy.
+     *
+     *  @param buffer The message, from its position to its limit.
+     *  @param priority The priority of the chunks.
+     */
+    public void sendStream(ByteBuffer buffer, int priority)
+        throws ChannelException {
+
+        if (buffer == null) {
+            throw new ChannelException("Payload data cannot be null");
+        }
+
+        checkSend(priority);
+
+        int header = nextStreamId() | CHUNK_FIRST;
+
+        do {
+            int length = Math.min(buffer.remaining(), STREAM_CHUNK_SIZE);
+            boolean last = length == buffer.remaining();
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_SIZE + length);
+
+            chunk.putInt(last ? header | CHUNK_LAST : header);
+            header &= ~CHUNK_FIRST;
+
+            ByteBuffer source = buffer.duplicate();
+            source.limit(source.position() + length);
+            chunk.put(source);
+            chunk.flip();
+
+            sendChunk(priority, chunk);
+            buffer.position(buffer.position() + length);
+
+            if (last) {
+                return;
+            }
+        } while (true);
+    }
+
+    /**
+     *  Sends all data from an InputStream as one binary message, split
+     *  into chunks, which the receiving channels pass to onMessageChunk.
+     *
+     *  @param stream The stream to read until its end. It is not closed.
+     */
+    public void sendStream(InputStream stream) throws ChannelException {
+        sendStream(stream, 0);
+    }
+
+    /**
+     *  Sends all data from an InputStream as one binary message, split
+     *  into chunks, with specified priority. A chunk is sent as soon as
+     *  it is full or the stream has no more data available right away,
+     *  so data flows through as it is read. Blocks while the chunks
+     *  queued by the channel exceed the stream window, or throws if it
+     *  would block the thread that writes the connection.
+     *
+     *  @param stream The stream to read until its end. It is not closed.
+     *  @param priority The priority of the chunks.
+     */
+    public void sendStream(InputStream stream, int priority)
+        throws ChannelException {
+
+        if (stream == null) {
+            throw new ChannelException("Stream cannot be null");
+        }
+
+        checkSend(priority);
+
+        int header = nextStreamId() | CHUNK_FIRST;
+        boolean end = false;
+        byte[] chunk = null;
+
+        while (end == false) {
+            int length = CHUNK_HEADER_SIZE;
+
+            if (chunk == null) {
+                chunk = new byte[CHUNK_HEADER_SIZE + STREAM_CHUNK_SIZE];
+            }
+
+            try {
+                do {
+                    int n = stream.read(chunk, length, chunk.length - length);
+
+                    if (n < 0) {
+                        end = true;
+                        break;
+                    }
+
+                    length += n;
+                } while (length < chunk.length && stream.available() > 0);
+            } catch (IOException e) {
+                throw new ChannelException("Could not read stream: " +
+                                           e.getMessage());
+            }
+
+            ByteBuffer.wrap(chunk).putInt(end ? header | CHUNK_LAST : header);
+            header &= ~CHUNK_FIRST;
+
+            // The window counts bytes sent, so a short chunk is copied to
+            // its size and the read buffer is kept for the next one.
+            if (length < chunk.length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(chunk, 0, copy, 0, length);
+                sendChunk(priority, ByteBuffer.wrap(copy));
+            } else {
+                sendChunk(priority, ByteBuffer.wrap(chunk));
+                chunk = null;
+            }
+        }
     }
 
     /**
@@ -302,7 +870,28 @@ public class Channel {
      *  @param type The type of the signal.
      */
     public void emit(String message) throws ChannelException {
-        emit(Frame.UTF8, getBytes(message));
+        emit((CharSequence)message);
+    }
+
+    /**
+     *  Sends UTF8 signal to the channel, encoded straight into the
+     *  outbound buffer.
+     *
+     *  @param message The text to write to the channel.
+     */
+    public void emit(CharSequence message) throws ChannelException {
+
+        if (isConnected() == false) {
+            throw ChannelException.notConnected();
+        }
+
+        if (isEmitable() == false) {
+            throw ChannelException.badPermission("emit");
+        }
+
+        Frame frame = Frame.emitFrame(mPtr, Frame.UTF8, encode(message));
+        frame.setPool(mTextPool);
+        enqueueBuffered(frame);
     }
 
     /**
@@ -316,13 +905,15 @@ public class Channel {
     }
 
     /**
-     *  Sends a binary signal to the channel.
+     *  Sends a binary signal to the channel. The remaining content of the
+     *  buffer is sent by reference and must not be modified until it is
+     *  written.
      *
      *  @param data The data to write to the channel.
      *  @param type The type of the signal.
      */
     public void emit(ByteBuffer buffer) throws ChannelException {
-        emit(Frame.BINARY, getBytes(buffer));
+        emit(Frame.BINARY, buffer);
     }
 
     /**
@@ -357,32 +948,143 @@ public class Channel {
         return mBinPath;
     }
 
+    int getMode() {
+        return mMode;
+    }
+
+    byte[] getToken() {
+        return mToken;
+    }
+
+    /**
+     *  Called by the connection when the channel is added to it, before
+     *  any frame for the channel is posted.
+     */
+    void attach(Connection connection) {
+        mConnection = connection;
+    }
+
     int getPtr() {
         return mPtr;
     }
 
 
     void postFrame(int opcode, Frame frame) {
-        if (mHandler == null) {
-            return;
+        if (opcode == Frame.DATA || opcode == Frame.SIGNAL) {
+            count(frame, ChannelStats.MESSAGES_IN, ChannelStats.SIGNALS_IN,
+                  ChannelStats.BYTES_IN);
+        }
+
+        // The parser's frame may only be used until the post returns
+        if (mReuseEvents == false || mDispatcher.isSynchronous() == false) {
+            frame = keep(opcode, frame);
+        }
+
+        if (mBatchDelivery || mBatch != null) {
+            ArrayList<Frame> batch = null;
+
+            synchronized (mBatchLock) {
+                if (opcode == Frame.DATA && mBatchDelivery) {
+                    // Batched frames outlive the post
+                    if (mBatch != null && mBatch.size() < MAX_BATCH_SIZE) {
+                        mBatch.add(keep(opcode, frame));
+                        return;
+                    }
+
+                    batch = mBatch = new ArrayList<Frame>();
+                    batch.add(keep(opcode, frame));
+                } else {
+                    // Other events must not be overtaken by later messages
+                    mBatch = null;
+                }
+            }
+
+            if (batch != null) {
+                mDispatcher.post(this, EVENT_BATCH, batch);
+                return;
+            }
         }
 
-        Message message = mHandler.obtainMessage(opcode, frame);
-        message.sendToTarget();
+        mDispatcher.post(this, opcode, frame);
     }
 
-    void postError(ChannelException error) {
-        if (mHandler == null) {
-            return;
+    /**
+     *  Returns a frame that outlives the post. With pooled buffers,
+     *  messages hold a reference to their read buffer, which is released
+     *  once they are delivered.
+     */
+    private Frame keep(int opcode, Frame frame) {
+        if (opcode == Frame.DATA && mPooledBuffers) {
+            return frame.retain();
         }
 
-        Message message = mHandler.obtainMessage(0x99, error);
-        message.sendToTarget();
+        return frame.detach();
+    }
+
+    void postError(ChannelException error) {
+        mDispatcher.post(this, EVENT_ERROR, error);
+    }
+
+    void postReconnecting(int attempt, long delay) {
+        mDispatcher.post(this, EVENT_RECONNECTING, new long[] { attempt, delay });
+    }
+
+    void postReconnected(int attempts, long downtime) {
+        mDispatcher.post(this, EVENT_RECONNECTED, new long[] { attempts, downtime });
+    }
+
+    /**
+     *  Handle an event delivered by the Dispatcher.
+     *
+     *  @param what The type of the event.
+     *  @param obj The event object.
+     */
+    void handleEvent(int what, Object obj) {
+        switch (what) {
+
+            case Frame.RESOLVE:
+                handleResolveFrame((Frame)obj);
+                break;
+
+            case Frame.OPEN:
+                handleOpenFrame((Frame)obj);
+                break;
+
+            case Frame.DATA:
+                handleDataFrame((Frame)obj);
+                break;
+
+            case Frame.SIGNAL:
+                handleSignalFrame((Frame)obj);
+                break;
+
+            case EVENT_BATCH:
+                handleDataBatch((ArrayList<?>)obj);
+                break;
+
+            case EVENT_DRAIN:
+                onDrain();
+                break;
+
+            case EVENT_RECONNECTING:
+                long[] lost = (long[])obj;
+                onReconnecting((int)lost[0], lost[1]);
+                break;
+
+            case EVENT_RECONNECTED:
+                long[] back = (long[])obj;
+                onReconnected((int)back[0], back[1]);
+                break;
+
+            case EVENT_ERROR:
+                destroy((ChannelException)obj, null);
+                break;
+        }
     }
 
     void handleResolveFrame(Frame frame) {
 
-        if (mPtr != 0) {
+        if (mConnection == null) {
             return;
         }
 
@@ -391,19 +1093,25 @@ public class Channel {
             return;
         }
 
+        // The OPEN frame is already sent by the connection. The path is
+        // resolved again after a reconnect, if it was not before.
         mPtr = frame.getPtr();
-
-        Frame openFrame = Frame.openFrame(mPtr, mMode, mToken);
-        mConnection.enqueueFrame(openFrame);
     }
 
     void handleOpenFrame(Frame frame) {
 
         if (mConnected) {
+            // Opened again after a reconnect
+            if (frame.getFlag() != Frame.OPEN_ALLOW) {
+                destroy(ChannelException.fromOpenError(frame), null);
+            }
             return;
         }
 
         if (frame.getFlag() == Frame.OPEN_ALLOW) {
+            // A joining channel may be posted the OPEN response before
+            // the RESOLVE response replayed to it.
+            mPtr = frame.getPtr();
             mConnected = true;
             onConnect(ChannelEvent.fromFrame(this, frame));
         } else {
@@ -416,11 +1124,20 @@ public class Channel {
         switch (frame.getFlag()) { 
 
             case Frame.SIG_EMIT:
-                onSignal(ChannelEvent.fromFrame(this, frame));
+                if (mReuseEvents) {
+                    onSignal(createEvent(frame.getContentType(), 0,
+                                         frame.getPayload()));
+                } else {
+                    onSignal(ChannelEvent.fromFrame(this, frame));
+                }
                 break;
 
             case Frame.SIG_END:
-                destroy(null, ChannelCloseEvent.fromFrame(this, frame));
+                // The close may be completed locally after a reconnect
+                // as well, once it is received from the server.
+                if (mConnection != null) {
+                    destroy(null, ChannelCloseEvent.fromFrame(this, frame));
+                }
                 break;
 
             default:
@@ -432,9 +1149,156 @@ public class Channel {
 
 
     void handleDataFrame(Frame frame) {
-        onMessage(ChannelEvent.fromDataFrame(this, frame));
+        // Events created for the message may be retained
+        mDelivering = frame.getBuffer();
+
+        // The frame's own reference is released once it is delivered
+        PooledBuffer retained = frame.takeBuffer();
+
+        try {
+            if (frame.isChunk()) {
+                handleChunk(frame);
+                return;
+            }
+
+            ByteBuffer data = frame.getPayload();
+
+            if (mReuseEvents == false || data.isReadOnly()) {
+                onMessage(this, frame.getData(), frame.getContentType(),
+                          frame.getFlag());
+                return;
+            }
+
+            int position = data.position();
+            int limit = data.limit();
+
+            try {
+                onMessage(this, data, frame.getContentType(), frame.getFlag());
+            } finally {
+                // Another channel may be handed the same frame
+                data.limit(limit);
+                data.position(position);
+            }
+        } finally {
+            mDelivering = null;
+
+            if (retained != null) {
+                retained.release();
+            }
+        }
     }
 
+    /**
+     *  Deliver a chunk of a streamed message, without its header. A
+     *  chunk too short to have one is dropped.
+     */
+    void handleChunk(Frame frame) {
+        ByteBuffer data = frame.getData();
+
+        if (data.remaining() < CHUNK_HEADER_SIZE) {
+            return;
+        }
+
+        int header = data.getInt();
+
+        onMessageChunk(createEvent(frame.getContentType(),
+                                   frame.getFlag(),
+                                   mReuseEvents ? data : data.slice()),
+                       header & STREAM_ID_MASK,
+                       (header & CHUNK_FIRST) != 0,
+                       (header & CHUNK_LAST) != 0);
+    }
+
+    /**
+     *  Returns an event for a callback, which is the reused one if
+     *  reusable events are enabled.
+     */
+    private ChannelEvent createEvent(int ctype, int prio, ByteBuffer data) {
+        if (mReuseEvents == false) {
+            return new ChannelEvent(this, ctype, prio, data).setBuffer(mDelivering);
+        }
+
+        if (mEvent == null) {
+            mEvent = new ChannelEvent(this, ctype, prio, data);
+            mEvent.setReused();
+        }
+
+        return mEvent.reset(ctype, prio, data).setBuffer(mDelivering);
+    }
+
+    void handleDataBatch(ArrayList<?> batch) {
+        synchronized (mBatchLock) {
+            // Close the batch, so that no more messages are added to it
+            if (mBatch == batch) {
+                mBatch = null;
+            }
+        }
+
+        int size = batch.size();
+
+        try {
+            ArrayList<ChannelEvent> events = new ArrayList<ChannelEvent>(size);
+
+            for (int i = 0; i < size; i++) {
+                Frame frame = (Frame)batch.get(i);
+
+                if (frame.isChunk() == false) {
+                    events.add(ChannelEvent.fromDataFrame(this, frame));
+                    continue;
+                }
+
+                // Chunks are delivered in order with the messages around
+                if (events.isEmpty() == false) {
+                    onMessages(events);
+                    events = new ArrayList<ChannelEvent>(size - i);
+                }
+
+                mDelivering = frame.getBuffer();
+                handleChunk(frame);
+                mDelivering = null;
+            }
+
+            if (events.isEmpty() == false) {
+                onMessages(events);
+            }
+        } finally {
+            mDelivering = null;
+
+            for (int i = 0; i < size; i++) {
+                ((Frame)batch.get(i)).release();
+            }
+        }
+    }
+
+
+    /**
+     *  Called when a callback throws on a thread the library owns. The
+     *  channel is closed with the exception as the reason, other channels
+     *  on the connection are not affected. An exception that cannot be
+     *  reported that way, because the channel is already closed or
+     *  onClose throws, goes to the uncaught exception handler of the
+     *  thread, which is left running.
+     *
+     *  @param e The exception.
+     */
+    void callbackFailed(RuntimeException e) {
+        if (mConnection == null) {
+            // Thrown by onClose, or after the channel was closed
+            uncaught(e);
+            return;
+        }
+
+        try {
+            destroy(ChannelException.uncaught(e), null);
+        } catch (RuntimeException again) {
+            uncaught(again);
+        }
+    }
+
+    private static void uncaught(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
 
     /**
      *  Internally destroy channel.
@@ -443,26 +1307,23 @@ public class Channel {
      */
     void destroy(ChannelException error, ChannelEvent event) {
         Connection connection = mConnection;
-        int ptr = mPtr;
         boolean closing = mClosing;
-        Frame frame;
 
         mConnection = null;
 
         if (connection != null) {
-
-            // Tell server that we received the end signal
-            if (event != null && closing == false) {
-                frame = Frame.endFrame(ptr);
-                connection.enqueueFrame(frame);
-            }
-
-            connection.deallocChannel(this);
+            // Tell server that we received the end signal, once no other
+            // channel shares the path.
+            connection.deallocChannel(this, event != null && closing == false);
         }
 
         mPtr = 0;
         mConnected = false;
         mClosing = false;
+        mAssembler = null;
+        mBufferedAmount.set(0);
+        mNeedDrain.set(false);
+        wakeSenders();
 
         if (closing) {
             // Always create a clean close event if user is responsible
@@ -487,15 +1348,35 @@ public class Channel {
      */
     void send(int ctype, int priority, byte[] data)
         throws ChannelException {
+        send(ctype, priority, data == null ? null : ByteBuffer.wrap(data));
+    }
 
-        if (isConnected() == false) {
-            throw ChannelException.notConnected();
-        }
+    /**
+     *  Sends the remaining content of a buffer, by reference, with
+     *  specified priority and ContentType.
+     *
+     *  @param ctype The ContentType of the payload
+     *  @param priority The priority of the payload.
+     *  @param buffer The payload to write to the channel.
+     */
+    void send(int ctype, int priority, ByteBuffer buffer)
+        throws ChannelException {
 
-        if (data == null || data.length == 0) {
+        if (buffer == null || buffer.hasRemaining() == false) {
             throw new ChannelException("Payload data cannot be zero-length");
         }
 
+        checkSend(priority);
+
+        Frame frame = Frame.dataFrame(mPtr, ctype, priority, take(buffer));
+        enqueueBuffered(frame);
+    }
+
+    private void checkSend(int priority) throws ChannelException {
+        if (isConnected() == false) {
+            throw ChannelException.notConnected();
+        }
+
         if (priority < 0 || priority > 7) {
             throw new ChannelException("Priority must be between 0 - 7");
         }
@@ -503,9 +1384,57 @@ public class Channel {
         if (isWritable() == false) {
             throw ChannelException.badPermission("write");
         }
+    }
+
+    /**
+     *  Queue one chunk of a stream, once the stream window has room.
+     *
+     *  @param priority The priority of the chunk.
+     *  @param chunk The chunk, header included.
+     */
+    private void sendChunk(int priority, ByteBuffer chunk)
+        throws ChannelException {
+        Connection connection = mConnection;
+
+        if (connection == null || isConnected() == false) {
+            throw ChannelException.notConnected();
+        }
+
+        synchronized (mSendLock) {
+            mStreamWaiters.incrementAndGet();
+
+            try {
+                while (mBufferedAmount.get() > STREAM_WINDOW - chunk.remaining()) {
+
+                    if (mConnection != connection || connection.isDestroying()) {
+                        throw ChannelException.notConnected();
+                    }
+
+                    checkWait(connection);
+
+                    try {
+                        mSendLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ChannelException("Interrupted while waiting to send");
+                    }
+                }
+            } finally {
+                mStreamWaiters.decrementAndGet();
+            }
+        }
 
-        Frame frame = Frame.dataFrame(mPtr, ctype, priority, data);
-        mConnection.enqueueFrame(frame);
+        // A lost chunk would corrupt the message, so the stream waits for
+        // the watermarks as well, whatever the policy.
+        enqueueBuffered(Frame.dataFrame(mPtr,
+                                        Frame.BINARY | Frame.CHUNK,
+                                        priority,
+                                        chunk),
+                        OverflowPolicy.BLOCK);
+    }
+
+    private static int nextStreamId() {
+        return mStreamIds.incrementAndGet() & STREAM_ID_MASK;
     }
 
     /**
@@ -515,6 +1444,16 @@ public class Channel {
      *  @param type The type of the signal.
      */
     void emit(int ctype, byte[] data) throws ChannelException {
+        emit(ctype, data == null ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     *  Sends the remaining content of a buffer, by reference, as a signal.
+     *
+     *  @param ctype The ContentType of the signal.
+     *  @param buffer The data to write to the channel.
+     */
+    void emit(int ctype, ByteBuffer buffer) throws ChannelException {
 
         if (isConnected() == false) {
             throw ChannelException.notConnected();
@@ -524,8 +1463,8 @@ public class Channel {
             throw ChannelException.badPermission("emit");
         }
 
-        Frame frame = Frame.emitFrame(mPtr, ctype, data);
-        mConnection.enqueueFrame(frame);
+        Frame frame = Frame.emitFrame(mPtr, ctype, take(buffer));
+        enqueueBuffered(frame);
     }
 
     /**
@@ -544,7 +1483,220 @@ public class Channel {
         mClosing = true;
 
         Frame frame = Frame.endFrame(mPtr, ctype, data);
-        mConnection.enqueueFrame(frame);
+        mConnection.closeChannel(this, frame);
+    }
+
+    /**
+     *  Queue a message or signal, counting it in the send buffer and
+     *  applying the overflow policy.
+     *
+     *  @param frame The frame to send.
+     */
+    void enqueueBuffered(Frame frame) throws ChannelException {
+        enqueueBuffered(frame, mOverflowPolicy);
+    }
+
+    void enqueueBuffered(Frame frame, int policy) throws ChannelException {
+        Connection connection = mConnection;
+        int size = frame.getSize();
+
+        if (connection == null) {
+            frame.recycle();
+            throw ChannelException.notConnected();
+        }
+
+        while (isOverHighWatermark(connection, size)) {
+            mNeedDrain.set(true);
+
+            switch (policy) {
+
+                case OverflowPolicy.DROP:
+                    mCounters.increment(ChannelStats.DROPPED);
+                    if (connection != null) {
+                        connection.countDropped();
+                    }
+                    frame.recycle();
+                    return;
+
+                case OverflowPolicy.BLOCK:
+                    try {
+                        awaitLowWatermark(connection);
+                    } catch (ChannelException e) {
+                        frame.recycle();
+                        throw e;
+                    }
+                    break;
+
+                default:
+                    frame.recycle();
+                    throw new ChannelException("Send buffer is full");
+            }
+        }
+
+        frame.setOwner(this, size);
+        mBufferedAmount.addAndGet(size);
+        connection.addBufferedAmount(size);
+
+        // Count before the frame is queued, the writer consumes the payload
+        count(frame, ChannelStats.MESSAGES_OUT, ChannelStats.SIGNALS_OUT,
+              ChannelStats.BYTES_OUT);
+
+        connection.enqueueFrame(frame);
+    }
+
+    /**
+     *  Count a message or an emitted signal.
+     */
+    private void count(Frame frame, int messages, int signals, int bytes) {
+        ByteBuffer payload = frame.getPayload();
+
+        if (frame.getOp() == Frame.DATA) {
+            mCounters.increment(messages);
+        } else if (frame.getFlag() == Frame.SIG_EMIT) {
+            mCounters.increment(signals);
+        } else {
+            return;
+        }
+
+        if (payload != null) {
+            mCounters.add(bytes, payload.remaining());
+        }
+    }
+
+    private boolean isOverHighWatermark(Connection connection, int size) {
+        int high = mSendBufferHigh;
+
+        if (high > 0 && mBufferedAmount.get() + size > high) {
+            return true;
+        }
+
+        return connection.isOverHighWatermark(size);
+    }
+
+    private boolean isBelowLowWatermark(Connection connection) {
+        if (mSendBufferHigh > 0 && mBufferedAmount.get() > mSendBufferLow) {
+            return false;
+        }
+
+        return connection == null || connection.isBelowLowWatermark();
+    }
+
+    private void awaitLowWatermark(Connection connection)
+        throws ChannelException {
+
+        synchronized (mSendLock) {
+            while (isBelowLowWatermark(connection) == false) {
+
+                if (mConnection != connection || connection.isDestroying()) {
+                    throw ChannelException.notConnected();
+                }
+
+                checkWait(connection);
+
+                try {
+                    mSendLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ChannelException("Interrupted while waiting to send");
+                }
+            }
+        }
+    }
+
+    /**
+     *  Throws if waiting would block the thread that drains the send
+     *  queue, which would then never wake up.
+     */
+    private void checkWait(Connection connection) throws ChannelException {
+        if (connection.isWriterThread()) {
+            throw new ChannelException("Cannot wait for the send buffer " +
+                                       "on the I/O thread");
+        }
+    }
+
+    /**
+     *  Called by the connection when a counted frame has been written.
+     *
+     *  @param size The number of bytes counted for the frame.
+     */
+    void frameWritten(int size) {
+        mBufferedAmount.addAndGet(-size);
+        checkDrain();
+
+        if (mStreamWaiters.get() > 0) {
+            wakeSenders();
+        }
+    }
+
+    /**
+     *  Wake up blocked senders and signal a drain, if the send buffers
+     *  are back at their low watermarks after a send hit a limit.
+     */
+    void checkDrain() {
+        if (mNeedDrain.get() == false ||
+            isBelowLowWatermark(mConnection) == false) {
+            return;
+        }
+
+        if (mNeedDrain.compareAndSet(true, false)) {
+            wakeSenders();
+            mDispatcher.post(this, EVENT_DRAIN, null);
+        }
+    }
+
+    void wakeSenders() {
+        synchronized (mSendLock) {
+            mSendLock.notifyAll();
+        }
+    }
+
+    /**
+     *  Returns a view of the remaining content and marks it as consumed
+     *  in the original buffer.
+     */
+    ByteBuffer take(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+
+        ByteBuffer view = buffer.slice();
+        buffer.position(buffer.limit());
+        return view;
+    }
+
+    /**
+     *  Encode text as UTF-8, into a pooled buffer if it fits in one and
+     *  one is free. A deep send queue falls back to exactly sized
+     *  buffers rather than spending a pooled size on each message.
+     *
+     *  @param text The text, or null.
+     *  @return The encoded text, or null.
+     */
+    private ByteBuffer encode(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+
+        int length = Utf8.length(text, Frame.PAYLOAD_MAX_LIMIT);
+
+        if (length < 0) {
+            throw new IllegalArgumentException("Payload max limit reached");
+        }
+
+        ByteBuffer buffer = null;
+
+        if (length <= TEXT_BUFFER_SIZE) {
+            buffer = mTextPool.poll();
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(length);
+        }
+
+        Utf8.encode(text, buffer);
+        buffer.flip();
+
+        return buffer;
     }
 
     byte[] getBytes(ByteBuffer buffer) {
@@ -1,18 +1,47 @@
 package com.hydna;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CoderResult;
 
 public class ChannelEvent {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Decoded text up to this size reuses the char buffer of the thread
+    static final int DECODE_BUFFER_SIZE = 0x1000;
+
+    private static final ThreadLocal<CharsetDecoder> mDecoder =
+        new ThreadLocal<CharsetDecoder>() {
+            @Override
+            protected CharsetDecoder initialValue() {
+                return UTF8.newDecoder();
+            }
+        };
+
+    private static final ThreadLocal<CharBuffer> mDecodeBuffer =
+        new ThreadLocal<CharBuffer>() {
+            @Override
+            protected CharBuffer initialValue() {
+                return CharBuffer.allocate(DECODE_BUFFER_SIZE);
+            }
+        };
+
     private Channel mTarget;
 
     private ByteBuffer mData;
     private String mUtfContent;
     private int mCtype;
     private int mPriority;
+
+    private PooledBuffer mBuffer;
+
+    // Number of retains not yet released, or REUSED
+    private int mRetained = 0;
+
+    private static final int REUSED = -1;
 	
     public ChannelEvent(Channel target, int ctype, ByteBuffer data) {
         mTarget = target;
@@ -33,6 +62,41 @@ public class ChannelEvent {
         mCtype = Frame.UTF8;
     }
 
+    /**
+     *  Reuse the event for new content.
+     *
+     *  @return The event.
+     */
+    ChannelEvent reset(int ctype, int prio, ByteBuffer data) {
+        mData = data;
+        mUtfContent = null;
+        mCtype = ctype;
+        mPriority = prio;
+        return this;
+    }
+
+    /**
+     *  Mark the event as reused for every callback, so that retaining it
+     *  makes a copy.
+     */
+    void setReused() {
+        mRetained = REUSED;
+    }
+
+    /**
+     *  Set the pooled buffer the data is a slice of.
+     *
+     *  @param buffer The buffer, or null.
+     */
+    ChannelEvent setBuffer(PooledBuffer buffer) {
+        mBuffer = buffer;
+        return this;
+    }
+
+    int getContentType() {
+        return mCtype;
+    }
+
     /**
      *  Returns the priority of the content, if a Message (onMessage), otherwise
      *  0. 
@@ -55,7 +119,7 @@ public class ChannelEvent {
         return new ChannelEvent(target,
                                 frame.getContentType(),
                                 frame.getFlag(),
-                                frame.getData());
+                                frame.getData()).setBuffer(frame.getBuffer());
     }
 
     /**
@@ -88,6 +152,9 @@ public class ChannelEvent {
 
     /**
      *  Returns the data associated with this ChannelData instance.
+     *  Data broadcasted to all channels on a connection is shared between
+     *  them and returned as a read-only buffer, on which array() throws
+     *  ReadOnlyBufferException. Use getBytes for a copy in an array.
      *
      *  @return The content.
      */
@@ -95,6 +162,82 @@ public class ChannelEvent {
         return mData;
     }
 
+    /**
+     *  Returns a copy of the remaining data in a new array, whether or
+     *  not the data is read-only. The position of the data is left as
+     *  it was.
+     *
+     *  @return The content, or an empty array if there is none.
+     */
+    public byte[] getBytes() {
+        if (mData == null) {
+            return mUtfContent == null ? new byte[0] : mUtfContent.getBytes(UTF8);
+        }
+
+        byte[] bytes = new byte[mData.remaining()];
+        int pos = mData.position();
+
+        mData.get(bytes);
+        mData.position(pos);
+
+        return bytes;
+    }
+
+    /**
+     *  Keep the event and its data after the callback returns, until
+     *  release is called. Needed with pooled buffers, where the data of
+     *  an event that is not retained is overwritten once the callback
+     *  returns, and with reusable events, in which case the event to
+     *  keep is a copy of this one. Must be called before the callback
+     *  returns, or on an event that is still retained.
+     *
+     *  @return The event to keep and release.
+     */
+    public ChannelEvent retain() {
+        if (mRetained == REUSED) {
+            ChannelEvent event = new ChannelEvent(mTarget,
+                                                  mCtype,
+                                                  mPriority,
+                                                  mData == null ? null
+                                                                : mData.duplicate());
+            event.mUtfContent = mUtfContent;
+            event.mBuffer = mBuffer;
+            return event.retain();
+        }
+
+        synchronized (this) {
+            if (mRetained++ == 0) {
+                LeakDetector.track(this);
+            }
+        }
+
+        if (mBuffer != null) {
+            mBuffer.retain();
+        }
+
+        return this;
+    }
+
+    /**
+     *  Release an event kept with retain. Its data must not be used
+     *  afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            if (mRetained <= 0) {
+                throw new IllegalStateException("Event is not retained");
+            }
+
+            if (--mRetained == 0) {
+                LeakDetector.close(this);
+            }
+        }
+
+        if (mBuffer != null) {
+            mBuffer.release();
+        }
+    }
+
     /**
      *  Returns the data associated with this ChannelData instance as
      * an UTF-8 String.
@@ -102,10 +245,6 @@ public class ChannelEvent {
      *  @return The content or null if not of type UTF-8.
      */
     public String getString() {
-        Charset charset;
-        CharsetDecoder decoder;
-        int pos;
-
         if (isUtf8Content() == false) {
             return null;
         }
@@ -114,18 +253,45 @@ public class ChannelEvent {
             return mUtfContent;
         }
 
-        pos = mData.position();
-        charset = Charset.forName("UTF-8");
-        decoder = charset.newDecoder();
-        mUtfContent = null;
+        if (mData == null) {
+            return "";
+        }
+
+        mUtfContent = decode(mData);
+
+        return mUtfContent;
+    }
+
+    /**
+     *  Decode UTF-8 data with the decoder of the calling thread. The
+     *  position of the data is left as it was.
+     *
+     *  @param data The data.
+     *  @return The text, or null if the data is not valid UTF-8.
+     */
+    static String decode(ByteBuffer data) {
+        CharsetDecoder decoder = mDecoder.get();
+        int pos = data.position();
+        int length = (int)(data.remaining() * decoder.maxCharsPerByte());
+        CharBuffer out = length <= DECODE_BUFFER_SIZE
+            ? mDecodeBuffer.get()
+            : CharBuffer.allocate(length);
+
+        out.clear();
+        decoder.reset();
 
         try {
-            mUtfContent = decoder.decode(mData).toString();
-        } catch (CharacterCodingException ex) {
+            CoderResult result = decoder.decode(data, out, true);
+
+            if (result.isError() || decoder.flush(out).isError()) {
+                return null;
+            }
         } finally {
-            mData.position(pos);
+            data.position(pos);
         }
 
-        return mUtfContent;
+        out.flip();
+
+        return out.toString();
     }
 }
@@ -113,6 +113,17 @@ public class ChannelException extends Exception {
                                 host + "\" on the port " + port);
     }
 
+    static ChannelException tlsFailed(String host, Exception e) {
+        return new ChannelException("Could not establish a secure connection to \"" +
+                                host + "\": " + e.getMessage());
+    }
+
+    static ChannelException uncaught(RuntimeException e) {
+        ChannelException error = new ChannelException("Uncaught exception, " + e);
+        error.initCause(e);
+        return error;
+    }
+
     static ChannelException unableToResolve(String host) {
         return new ChannelException("The host \"" + host +
                                 "\" could not be resolved");
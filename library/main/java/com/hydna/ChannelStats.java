@@ -0,0 +1,76 @@
+package com.hydna;
+
+/**
+ *  A snapshot of the message counts of a channel.
+ *
+ *  Received messages and signals are counted when they arrive, before
+ *  they are dispatched. Sent ones are counted when they are queued, and
+ *  the ones dropped by OverflowPolicy.DROP separately.
+ */
+public class ChannelStats {
+
+    static final int MESSAGES_IN = 0;
+    static final int MESSAGES_OUT = 1;
+    static final int SIGNALS_IN = 2;
+    static final int SIGNALS_OUT = 3;
+    static final int BYTES_IN = 4;
+    static final int BYTES_OUT = 5;
+    static final int DROPPED = 6;
+    static final int STREAMS_DISCARDED = 7;
+    static final int COUNTERS = 8;
+
+    private final long[] mCounts = new long[COUNTERS];
+
+    ChannelStats(StripedCounter counter) {
+        for (int i = 0; i < COUNTERS; i++) {
+            mCounts[i] = counter.get(i);
+        }
+    }
+
+    public long getMessagesIn() {
+        return mCounts[MESSAGES_IN];
+    }
+
+    public long getMessagesOut() {
+        return mCounts[MESSAGES_OUT];
+    }
+
+    public long getSignalsIn() {
+        return mCounts[SIGNALS_IN];
+    }
+
+    public long getSignalsOut() {
+        return mCounts[SIGNALS_OUT];
+    }
+
+    /**
+     *  Returns the number of payload bytes in received messages and
+     *  signals.
+     */
+    public long getBytesIn() {
+        return mCounts[BYTES_IN];
+    }
+
+    /**
+     *  Returns the number of payload bytes in sent messages and signals.
+     */
+    public long getBytesOut() {
+        return mCounts[BYTES_OUT];
+    }
+
+    /**
+     *  Returns the number of messages and signals dropped because the
+     *  send buffer was full.
+     */
+    public long getDropped() {
+        return mCounts[DROPPED];
+    }
+
+    /**
+     *  Returns the number of streamed messages that were discarded
+     *  instead of assembled, see Channel.setMaxStreamSize.
+     */
+    public long getStreamsDiscarded() {
+        return mCounts[STREAMS_DISCARDED];
+    }
+}
@@ -1,9 +1,6 @@
 package com.hydna;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -11,19 +8,37 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.lang.SecurityException;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
 /**
  *  This class is used internally by the Channel class.
  *  A user of the library should not create an instance of this class.
@@ -32,393 +47,1983 @@ public class Connection implements Runnable {
 
     private static Object LOCK = new Object();
 
-    private static Map<String, ArrayList<Connection>> mConnections;
-
-    private boolean mDestroying = false;
+    private static ConcurrentHashMap<String, CopyOnWriteArrayList<Connection>> mConnections;
+
+    static final int DEFAULT_SEND_BATCH_FRAMES = 64;
+    static final int DEFAULT_SEND_BATCH_BYTES = 0x10000;
+    static final int DEFAULT_READ_POOL_SIZE = 4;
+
+    private static volatile int mSendBatchFrames = DEFAULT_SEND_BATCH_FRAMES;
+    private static volatile int mSendBatchBytes = DEFAULT_SEND_BATCH_BYTES;
+    private static volatile boolean mDirectBuffers = false;
+    private static volatile int mReadBufferSize = FrameParser.DEFAULT_BUFFER_SIZE;
+    private static volatile int mReadPoolSize = DEFAULT_READ_POOL_SIZE;
+    private static volatile boolean mDirectReadBuffers = false;
+    private static volatile int mResolveCacheSize = ResolveCache.DEFAULT_SIZE;
+    private static volatile int mSendBufferHigh = 0;
+    private static volatile int mSendBufferLow = 0;
+    private static volatile ReconnectPolicy mReconnectPolicy = null;
+    private static volatile long mKeepAliveInterval = 0;
+    private static volatile long mKeepAliveTimeout = 0;
+    private static volatile int mMaxPaths = 0;
+    private static volatile boolean mPipelining = false;
+    private static volatile SSLContext mSSLContext = null;
+    private static volatile HostnameVerifier mHostnameVerifier = null;
+
+    private static volatile BufferPool mHeaderPool =
+        createHeaderPool(DEFAULT_SEND_BATCH_FRAMES, false);
+    private static volatile BufferPool mReadPool =
+        createReadPool(FrameParser.DEFAULT_BUFFER_SIZE, DEFAULT_READ_POOL_SIZE, false);
+
+    // Number of connect/handshake threads shared by selector driven
+    // connections, which also run the heartbeats of all connections.
+    static final int SETUP_THREADS = 2;
+
+    // Max number of batches written per writable event, so one busy
+    // connection cannot hold up the rest of its selector loop.
+    static final int MAX_WRITES_PER_EVENT = 16;
+
+    private static SelectorLoop[] mLoops;
+    private static AtomicInteger mNextLoop = new AtomicInteger();
+    private static ScheduledThreadPoolExecutor mSetupExecutor;
+
+    private volatile boolean mDestroying = false;
 
     private String mId;
     private String mHost;
-    private short mPort;
+    private int mPort;
+    private final boolean mSecure;
 
     private SocketChannel mSocketChannel;
-    private Socket mSocket;
+    private volatile Socket mSocket;
+    private TlsChannel mTls;
 
-    private ConcurrentHashMap<Integer, Channel> mChannelsByRoute;
-    private ConcurrentHashMap<ByteBuffer, Channel> mChannelsByPath;
+    private ConcurrentHashMap<Integer, Subscription> mChannelsByRoute;
+    private ConcurrentHashMap<ByteBuffer, Subscription> mChannelsByPath;
 
     private Thread mThread;
 
+    private final FrameQueue mQueue;
+    private final ResolveCache mResolveCache;
     private Sender mSender;
 
+    private SelectorLoop mLoop;
+    private SelectionKey mKey;
+    private FrameParser mParser;
+    private FrameEncoder mEncoder;
+    private final AtomicBoolean mWriteRequested = new AtomicBoolean();
+
+    private final AtomicLong mBufferedAmount = new AtomicLong();
+    private final AtomicBoolean mOverHighWatermark = new AtomicBoolean();
+
+    private final ReconnectPolicy mReconnect;
+    private volatile boolean mEstablished = false;
+    private volatile boolean mReconnecting = false;
+    private volatile boolean mReopening = false;
+    private volatile ChannelException mLostError;
+    private int mAttempt = 0;
+    private long mLostAt = 0;
+
+    private final AtomicInteger mReconnects = new AtomicInteger();
+    private volatile long mLastRecoveryTime = 0;
+
+    private final long mHeartbeatInterval;
+    private final long mHeartbeatTimeout;
+    private ScheduledFuture<?> mHeartbeat;
+    private volatile long mLastReceived = 0;
+    private volatile long mKeepAliveSentAt = 0;
+    private volatile boolean mTimedOut = false;
+    private volatile long mRoundTripTime = -1;
+
+    private final StripedCounter mFramesIn = new StripedCounter(ConnectionStats.OPCODES);
+    private final StripedCounter mBytesIn = new StripedCounter(ConnectionStats.OPCODES);
+    private final StripedCounter mFramesOut = new StripedCounter(ConnectionStats.OPCODES);
+    private final StripedCounter mBytesOut = new StripedCounter(ConnectionStats.OPCODES);
+    private final StripedCounter mFramesDropped = new StripedCounter(1);
+    private volatile long mHandshakeTime = 0;
+    private long mHandshakeStart = 0;
+    private Handshake mHandshake;
+
     static {
-        mConnections = new HashMap<String, ArrayList<Connection>>();
+        mConnections = new ConcurrentHashMap<String, CopyOnWriteArrayList<Connection>>();
     }
 
 
     private class Sender implements Runnable {
 
-        public final BlockingQueue<Frame> queue;
-
         private Thread mThread;
         private SocketChannel mChannel;
+        private GatheringByteChannel mOutput;
 
         public Sender() {
-
-            queue = new LinkedBlockingQueue<Frame>();
             mThread = new Thread(this);
         }
 
-        void start(SocketChannel channel) {
+        void start(SocketChannel channel, GatheringByteChannel output) {
             mChannel = channel;
+            mOutput = output;
             mThread.start();
         }
 
+        /**
+         *  Stop a sender of a session that is lost. The socket is closed
+         *  as well, so a write in progress fails.
+         */
+        void stop() {
+            mThread.interrupt();
+        }
+
+        boolean isSenderThread() {
+            return Thread.currentThread() == mThread;
+        }
+
+        /**
+         *  Checks if the sender still belongs to the current session.
+         */
+        private boolean isCurrent() {
+            return mChannel == mSocketChannel &&
+                   Thread.currentThread().isInterrupted() == false;
+        }
+
         public void run() {
+            FrameEncoder encoder = new FrameEncoder(Connection.this,
+                                                    mHeaderPool,
+                                                    mSendBatchFrames,
+                                                    mSendBatchBytes);
+            try {
+                send(encoder);
+            } finally {
+                encoder.dispose();
+            }
+        }
+
+        private void send(FrameEncoder encoder) {
             for (;;) {
 
                 Frame frame;
+                boolean done = false;
+
+                // The queue outlives the session, so a stopped sender must
+                // not take frames meant for the next one.
+                if (isCurrent() == false) {
+                    return;
+                }
 
                 try {
-                    frame = queue.take();
+                    frame = mQueue.take();
                 } catch (InterruptedException e) {
                     return;
                 }
 
-                if (frame.isNullFrame()) {
-                    // A null frame indicates that we are done.
-                    return;
-                }
+                // Drain everything that is already queued, within budget,
+                // so that it can be flushed with one gathering write.
+                while (frame != null) {
+
+                    if (frame.isNullFrame()) {
+                        // A null frame indicates that we are done.
+                        done = true;
+                        break;
+                    }
+
+                    encoder.add(frame);
+
+                    if (encoder.isFull() || isCurrent() == false) {
+                        break;
+                    }
+
+                    frame = mQueue.poll();
+                }
+
+                try {
+                    while (encoder.hasRemaining()) {
+                        encoder.write(mOutput);
+                    }
+                } catch (Exception e) {
+                    encoder.discard();
+
+                    if (mChannel == mSocketChannel) {
+                        connectionLost(new ChannelException("Could not write to the connection"));
+                    }
+                    return;
+                }
+
+                if (done) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Set the limits for how many frames, and how many bytes, the sender
+     *  drains from the queue and flushes with a single write. Applies to
+     *  connections created after the call.
+     *
+     *  @param frames The max number of frames per write.
+     *  @param bytes The max number of bytes per write (a single frame
+     *               may exceed it).
+     */
+    public static void setSendBatchLimits(int frames, int bytes) {
+        if (frames < 1 || bytes < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+
+        mSendBatchFrames = frames;
+        mSendBatchBytes = bytes;
+        mHeaderPool = createHeaderPool(frames, mDirectBuffers);
+    }
+
+    /**
+     *  Use direct buffers for outbound frame headers. Applies to
+     *  connections created after the call.
+     *
+     *  @param direct True to allocate direct buffers.
+     */
+    public static void setDirectBuffers(boolean direct) {
+        mDirectBuffers = direct;
+        mHeaderPool = createHeaderPool(mSendBatchFrames, direct);
+    }
+
+    /**
+     *  Set the size of the buffer incoming data is read into. Larger
+     *  buffers mean fewer reads and allocations. Applies to connections
+     *  created after the call.
+     *
+     *  @param size The read buffer size in bytes.
+     */
+    public static void setReadBufferSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+
+        mReadBufferSize = size;
+        mReadPool = createReadPool(size, mReadPoolSize, mDirectReadBuffers);
+    }
+
+    /**
+     *  Set how many read buffers are kept for reuse, and whether they
+     *  are direct. A read buffer goes back to the pool once the messages
+     *  in it are delivered, if they are all pooled, see
+     *  Channel.setPooledBuffers. Applies to connections created after
+     *  the call.
+     *
+     *  @param buffers The max number of idle buffers kept.
+     *  @param direct True to allocate direct buffers.
+     */
+    public static void setReadBufferPool(int buffers, boolean direct) {
+        if (buffers < 0) {
+            throw new IllegalArgumentException("Count cannot be negative");
+        }
+
+        mReadPoolSize = buffers;
+        mDirectReadBuffers = direct;
+        mReadPool = createReadPool(mReadBufferSize, buffers, direct);
+    }
+
+    /**
+     *  Report events that are retained and then garbage collected
+     *  without being released, with where they were retained. Each
+     *  retain takes a stack trace, so this is meant for debug builds.
+     *
+     *  @param enabled True to enable leak detection.
+     */
+    public static void setLeakDetection(boolean enabled) {
+        LeakDetector.setEnabled(enabled);
+    }
+
+    /**
+     *  Set how many resolved paths each connection remembers. Channels
+     *  opening a remembered path are opened without a RESOLVE round trip.
+     *  Applies to connections created after the call.
+     *
+     *  @param size The max number of paths per connection, or 0 to
+     *              always resolve.
+     */
+    public static void setResolveCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative");
+        }
+
+        mResolveCacheSize = size;
+    }
+
+    /**
+     *  Send the frames that are queued when a connection is opened, such
+     *  as the RESOLVE and OPEN frames of its first channels, right behind
+     *  the handshake request instead of after the response. This saves a
+     *  round trip per connection, but requires a server that reads frames
+     *  pipelined behind the upgrade request. Disabled by default.
+     *
+     *  @param enabled True to enable pipelining.
+     */
+    public static void setPipelining(boolean enabled) {
+        mPipelining = enabled;
+    }
+
+    /**
+     *  Set the SSL context that https connections are created from. All
+     *  connections share one context, and with it its session cache, so
+     *  a connection that is reopened resumes the session of the last one
+     *  instead of doing a full handshake. Applies to connections created
+     *  after the call.
+     *
+     *  @param context The context, or null for a default TLS context.
+     */
+    public static void setSSLContext(SSLContext context) {
+        mSSLContext = context;
+    }
+
+    /**
+     *  Set the verifier that checks the host name of https servers
+     *  against their certificates. By default the platform checks it.
+     *
+     *  @param verifier The verifier, or null for the default.
+     */
+    public static void setHostnameVerifier(HostnameVerifier verifier) {
+        mHostnameVerifier = verifier;
+    }
+
+    private static SSLContext getSSLContext() throws GeneralSecurityException {
+        SSLContext context = mSSLContext;
+
+        if (context == null) {
+            synchronized (LOCK) {
+                if ((context = mSSLContext) == null) {
+                    context = SSLContext.getInstance("TLS");
+                    context.init(null, null, null);
+                    mSSLContext = context;
+                }
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     *  Limit the number of paths opened on one connection. Channels that
+     *  open more paths on the same host get a connection of their own,
+     *  which spreads the load over several sockets.
+     *
+     *  @param max The max number of paths per connection, or 0 for no
+     *             limit.
+     */
+    public static void setMaxPathsPerConnection(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Max cannot be negative");
+        }
+
+        mMaxPaths = max;
+    }
+
+    /**
+     *  Limit the number of bytes that may be queued for sending on a
+     *  connection. When the high watermark is reached, sends are handled
+     *  according to the OverflowPolicy of each channel, until the queue
+     *  drains below the low watermark. Applies to all connections.
+     *
+     *  @param highWatermark The max number of queued bytes, or 0 for no
+     *                       limit.
+     *  @param lowWatermark The level at which sends resume.
+     */
+    public static void setSendBufferLimits(int highWatermark, int lowWatermark) {
+        if (highWatermark < 0 || lowWatermark < 0 ||
+            lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Invalid watermarks");
+        }
+
+        mSendBufferLow = lowWatermark;
+        mSendBufferHigh = highWatermark;
+    }
+
+    /**
+     *  Serve connections from a fixed number of selector threads instead
+     *  of a reader and a sender thread per connection. Connects and
+     *  handshakes run on a small shared pool. Applies to connections
+     *  created after the call.
+     *
+     *  @param threads The number of selector threads, or 0 to use
+     *                 threads per connection.
+     */
+    public static void setSelectorThreads(int threads) throws IOException {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Threads cannot be negative");
+        }
+
+        synchronized (LOCK) {
+            SelectorLoop[] loops = null;
+
+            if (threads > 0) {
+                loops = new SelectorLoop[threads];
+                for (int i = 0; i < threads; i++) {
+                    loops[i] = new SelectorLoop("hydna-selector-" + i);
+                }
+
+                getScheduler();
+            }
+
+            if (mLoops != null) {
+                for (SelectorLoop loop : mLoops) {
+                    loop.retire();
+                }
+            }
+
+            mLoops = loops;
+        }
+    }
+
+    /**
+     *  Send heartbeats on connections that have received nothing for a
+     *  while, and consider a connection dead if it stays silent for too
+     *  long. The server answers heartbeats, which also gives round-trip
+     *  time samples. A heartbeat that is not answered within the
+     *  interval is sent again. Applies to connections created after the
+     *  call.
+     *
+     *  A dead connection is reopened if there is a reconnect policy,
+     *  otherwise its channels are closed with an error.
+     *
+     *  @param interval The time without incoming data before a heartbeat
+     *                  is sent, in ms, or 0 to disable heartbeats.
+     *  @param timeout The time without incoming data before the
+     *                 connection is dead, in ms, or 0 for no limit. Must
+     *                 be longer than the interval.
+     */
+    public static void setKeepAlive(long interval, long timeout) {
+        if (interval < 0 || timeout < 0 ||
+            (timeout > 0 && (interval == 0 || timeout <= interval))) {
+            throw new IllegalArgumentException("Invalid keepalive interval or timeout");
+        }
+
+        mKeepAliveInterval = interval;
+        mKeepAliveTimeout = timeout;
+    }
+
+    /**
+     *  Returns the executor for connection setup and timers, and
+     *  creates it if needed.
+     */
+    private static ScheduledThreadPoolExecutor getScheduler() {
+        synchronized (LOCK) {
+            if (mSetupExecutor == null) {
+                mSetupExecutor = new ScheduledThreadPoolExecutor(SETUP_THREADS,
+                                                                 new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "hydna-setup");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            return mSetupExecutor;
+        }
+    }
+
+    /**
+     *  Set the policy for reopening connections that are lost after they
+     *  were established, or null to close their channels with an error
+     *  right away. Applies to connections created after the call.
+     *
+     *  While a connection is reopened its channels stay open, and sends
+     *  are queued until it is back. Frames that were being written when
+     *  the connection was lost may be lost too.
+     *
+     *  @param policy The policy, or null to disable reconnects.
+     */
+    public static void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    private static BufferPool createHeaderPool(int frames, boolean direct) {
+        return new BufferPool(frames * FrameEncoder.HEADER_LENGTH, 16, direct);
+    }
+
+    private static BufferPool createReadPool(int size, int buffers, boolean direct) {
+        return new BufferPool(Math.max(size, FrameParser.MAX_FRAME_SIZE),
+                              buffers,
+                              direct);
+    }
+
+    /**
+     *  Return an available connection or create a new one.
+     *
+     *  @param host The host associated with the connection.
+     *  @param port The port associated with the connection.
+     *  @param channel The Channel.
+     *  @param resolves The list to add the RESOLVE frame of the channel
+     *                  to, instead of queueing it, or null.
+     *  @return The connection.
+     */
+    static Connection getConnection(String protocol,
+                                    String host,
+                                    int port,
+                                    Channel channel,
+                                    List<Frame> resolves)
+        throws ChannelException {
+        CopyOnWriteArrayList<Connection> connections;
+        String id;
+        ByteBuffer path;
+
+        id = protocol + host + port;
+        path = ByteBuffer.wrap(channel.getBinaryPath());
+
+        if ((connections = mConnections.get(id)) == null) {
+            CopyOnWriteArrayList<Connection> existing;
+            connections = new CopyOnWriteArrayList<Connection>();
+            if ((existing = mConnections.putIfAbsent(id, connections)) != null) {
+                connections = existing;
+            }
+        }
+
+        // Usually the first connection to a host can take the path, so
+        // the common case needs neither a lock nor a scan.
+        for (Connection conn : connections) {
+            if (conn.addChannel(path, channel, resolves)) {
+                return conn;
+            }
+        }
+
+        // Only creating a connection is serialized, per host, so that
+        // concurrent opens do not create one connection each.
+        synchronized (connections) {
+            for (Connection conn : connections) {
+                if (conn.addChannel(path, channel, resolves)) {
+                    return conn;
+                }
+            }
+
+            Connection connection = new Connection(id, host, port,
+                                                   protocol.equals("https"));
+            connection.addChannel(path, channel, resolves);
+            connections.add(connection);
+
+            try {
+                connection.start();
+            } catch (IllegalThreadStateException e) {
+                connections.remove(connection);
+                throw new ChannelException("Could not create connection thread");
+            }
+
+            return connection;
+        }
+    }
+
+
+    static void disposeConnection(Connection connection) {
+        String id;
+
+        id = connection.mId;
+
+        if (id != null) {
+
+            connection.mId = null;
+
+            CopyOnWriteArrayList<Connection> connections;
+
+            if ((connections = mConnections.get(id)) == null) {
+                return;
+            }
+
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     *  Initializes a new Channel instance.
+     *
+     *  @param host The host the connection should connect to.
+     *  @param port The port the connection should connect to.
+     */
+    public Connection(String id, String host, int port) {
+        this(id, host, port, false);
+    }
+
+    /**
+     *  Initializes a new Channel instance.
+     *
+     *  @param host The host the connection should connect to.
+     *  @param port The port the connection should connect to.
+     *  @param secure True to connect with TLS.
+     */
+    public Connection(String id, String host, int port, boolean secure) {
+        mId = id;
+        mHost = host;
+        mPort = port;
+        mSecure = secure;
+
+        mChannelsByRoute = new ConcurrentHashMap<Integer, Subscription>();
+        mChannelsByPath = new ConcurrentHashMap<ByteBuffer, Subscription>();
+
+        mQueue = new FrameQueue();
+
+        int cacheSize = mResolveCacheSize;
+        mResolveCache = cacheSize > 0 ? new ResolveCache(cacheSize) : null;
+
+        mReconnect = mReconnectPolicy;
+        mHeartbeatInterval = mKeepAliveInterval;
+        mHeartbeatTimeout = mKeepAliveTimeout;
+    }
+
+    /**
+     *  Start connecting, either on an own thread or, if selector threads
+     *  are used, on the shared setup pool.
+     */
+    private void start() {
+        SelectorLoop[] loops = mLoops;
+
+        if (loops == null) {
+            mThread = new Thread(this);
+            mThread.start();
+            return;
+        }
+
+        mLoop = loops[(mNextLoop.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+        mSetupExecutor.execute(this);
+    }
+
+    /**
+     *  Add a channel to this connection, unless the connection is going
+     *  away, already has the path open with another mode or token, or
+     *  has the max number of paths open. A channel that opens a path
+     *  that is already open shares its subscription, and is sent the
+     *  server responses so far.
+     *
+     *  Opens do not lock the connection. A new path is claimed with
+     *  putIfAbsent, and frames are built, posted and queued with no lock
+     *  held but the subscription's.
+     *
+     *  @param path The binary path of the channel.
+     *  @param channel The channel.
+     *  @param resolves The list to add the RESOLVE frame (or the OPEN
+     *                  frame, if the path is cached) to instead of
+     *                  queueing it, or null.
+     *  @return True if the channel was added.
+     */
+    boolean addChannel(ByteBuffer path,
+                       Channel channel,
+                       List<Frame> resolves) {
+        for (;;) {
+            if (isAvailable() == false) {
+                return false;
+            }
+
+            Subscription subscription = mChannelsByPath.get(path);
+
+            if (subscription == null) {
+                subscription = new Subscription(path,
+                                                channel.getMode(),
+                                                channel.getToken());
+                subscription.channels.add(channel);
+                subscription.pending = true;
+
+                synchronized (subscription) {
+                    if (mChannelsByPath.putIfAbsent(path, subscription) != null) {
+                        // Another channel claimed the path first
+                        continue;
+                    }
+
+                    int max = mMaxPaths;
+
+                    // destroy takes the channels of each subscription
+                    // with it locked, after it sets mDestroying.
+                    if (mDestroying ||
+                        (max > 0 && mChannelsByPath.size() > max)) {
+                        mChannelsByPath.remove(path, subscription);
+                        subscription.channels.clear();
+                        return false;
+                    }
+
+                    channel.attach(this);
+                }
+
+                requestPath(subscription, channel, resolves);
+
+                return true;
+            }
+
+            Frame resolveFrame;
+            Frame openFrame;
+
+            synchronized (subscription) {
+                if (subscription.channels.isEmpty()) {
+                    // Its last channel closed, and it is being removed
+                    mChannelsByPath.remove(path, subscription);
+                    continue;
+                }
+
+                if (mDestroying ||
+                    subscription.matches(channel.getMode(),
+                                         channel.getToken()) == false) {
+                    return false;
+                }
+
+                subscription.channels.add(channel);
+                channel.attach(this);
+
+                // Taken along with joining, so that the channel gets each
+                // response once, either replayed here or posted to all.
+                resolveFrame = subscription.resolveFrame;
+                openFrame = subscription.openFrame;
+            }
+
+            // A channel that closes on delivery locks the connection
+            if (resolveFrame != null) {
+                channel.postFrame(Frame.RESOLVE, resolveFrame);
+            }
+
+            if (openFrame != null) {
+                channel.postFrame(Frame.OPEN, openFrame);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     *  Send the RESOLVE frame for a path a channel just claimed, or the
+     *  OPEN frame if the path is cached.
+     *
+     *  @param subscription The new subscription.
+     *  @param channel The channel that claimed the path.
+     *  @param resolves The list to add the frame to, or null.
+     */
+    private void requestPath(Subscription subscription,
+                             Channel channel,
+                             List<Frame> resolves) {
+        ByteBuffer path = subscription.path;
+        int ptr = mResolveCache == null ? 0 : mResolveCache.get(path);
+        Frame frame;
+
+        if (ptr == 0) {
+            frame = Frame.resolveFrame(channel.getBinaryPath());
+        } else {
+            // The path was resolved before on this connection, skip
+            // straight to opening it.
+            Frame resolveFrame = Frame.create(ptr,
+                                              Frame.UTF8,
+                                              Frame.RESOLVE,
+                                              Frame.OPEN_ALLOW);
+
+            synchronized (subscription) {
+                subscription.ptr = ptr;
+                subscription.opening = true;
+                subscription.resolveFrame = resolveFrame;
+                mChannelsByRoute.put(ptr, subscription);
+            }
+
+            channel.postFrame(Frame.RESOLVE, resolveFrame);
+
+            frame = Frame.openFrame(ptr,
+                                    subscription.mode,
+                                    subscription.token);
+        }
+
+        synchronized (subscription) {
+            subscription.requestedAt = System.nanoTime();
+
+            if (resolves != null) {
+                subscription.pending = false;
+                resolves.add(frame);
+                return;
+            }
+
+            if (mReopening == false) {
+                subscription.pending = false;
+                enqueueFrame(frame);
+                return;
+            }
+        }
+
+        // A reconnect is reopening paths, and leaves pending ones to
+        // their channels. Queue the frame once it has dropped the frames
+        // of the old session.
+        synchronized (this) {
+            synchronized (subscription) {
+                subscription.pending = false;
+                enqueueFrame(frame);
+            }
+        }
+    }
+
+    /**
+     *  Close a channel. If other channels share its path, the channel
+     *  stops receiving frames and is closed locally, otherwise the END
+     *  frame is sent to the server.
+     *
+     *  @param channel The channel.
+     *  @param frame The END frame.
+     */
+    void closeChannel(Channel channel, Frame frame) {
+        Subscription subscription = mChannelsByPath.get(
+            ByteBuffer.wrap(channel.getBinaryPath()));
+
+        if (subscription != null) {
+            Frame end = null;
+
+            synchronized (subscription) {
+                if (subscription.isShared()) {
+                    subscription.channels.remove(channel);
+                    end = Frame.endFrame(subscription.ptr);
+                } else {
+                    subscription.closing = true;
+                }
+            }
+
+            if (end != null) {
+                // Closed on delivery, which locks the connection
+                channel.postFrame(Frame.SIGNAL, end);
+                return;
+            }
+        }
+
+        enqueueFrame(frame);
+    }
+
+    /**
+     *  Decrease the reference count.
+     *
+     *  @param channel The channel to dealloc.
+     *  @param ackEnd True if an END frame from the server should be
+     *                acknowledged, once no channel uses the path.
+     */
+    void deallocChannel(Channel channel, boolean ackEnd) {
+
+        if (mDestroying) {
+            return;
+        }
+
+        synchronized (this) {
+            ByteBuffer path = ByteBuffer.wrap(channel.getBinaryPath());
+            Subscription subscription = mChannelsByPath.get(path);
+
+            if (subscription == null) {
+                return;
+            }
+
+            synchronized (subscription) {
+                if (subscription.channels.remove(channel) == false ||
+                    subscription.channels.isEmpty() == false) {
+                    return;
+                }
+
+                if (ackEnd) {
+                    enqueueFrame(Frame.endFrame(subscription.ptr));
+                }
+            }
+
+            // A channel may already have claimed the path again
+            if (subscription.ptr > 0) {
+                mChannelsByRoute.remove(subscription.ptr, subscription);
+            }
+
+            mChannelsByPath.remove(path, subscription);
+
+            if (mChannelsByPath.size() == 0) {
+                destroy(null);
+            }
+        }
+
+    }
+	
+    public void run() {
+        if (mLoop != null) {
+            open();
+            return;
+        }
+
+        // Without selector threads, the connection thread also waits
+        // between reconnect attempts.
+        for (;;) {
+            open();
+
+            if (mReconnecting == false || mDestroying) {
+                return;
+            }
+
+            long delay = scheduleAttempt(mLostError);
+
+            if (delay < 0) {
+                return;
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Connect, handshake and start serving the connection. Without
+     *  selector threads, returns when the connection is lost.
+     */
+    private void open() {
+        if (mDestroying) {
+            return;
+        }
+
+        try {
+            mHandshakeStart = System.nanoTime();
+
+            if (mLoop != null) {
+                // Only resolving the host blocks, the rest is done by the
+                // selector loop.
+                connect(false);
+                return;
+            }
+
+            connect(true);
+
+            FrameParser parser = new FrameParser(mReadPool);
+
+            handshakeHandler(parser);
+
+            if (handshakeDone() == false) {
+                return;
+            }
+
+            mSender = new Sender();
+            mSender.start(mSocketChannel, output());
+            receiveHandler(parser);
+        } catch (UnknownHostException e) {
+            connectFailed(ChannelException.unableToResolve(mHost));
+        } catch (UnresolvedAddressException e) {
+            connectFailed(ChannelException.unableToResolve(mHost));
+        } catch (SSLException e) {
+            connectFailed(ChannelException.tlsFailed(mHost, e));
+        } catch (IOException e) {
+            connectFailed(ChannelException.unableToConnect(mHost, mPort));
+        } catch (ChannelException e) {
+            connectFailed(e);
+        } catch (SecurityException e) {
+            connectFailed(new ChannelException(e.getMessage()));
+        }
+    }
+
+    /**
+     *  Called when the handshake response is accepted.
+     *
+     *  @return False if the connection should not be served.
+     */
+    private boolean handshakeDone() {
+        mHandshakeTime = (System.nanoTime() - mHandshakeStart) / 1000000;
+
+        if (mDestroying) {
+            closeSocket();
+            return false;
+        }
+
+        return established();
+    }
+
+    /**
+     *  Called when the handshake is done. After a reconnect, every path
+     *  that is still open is opened again, ahead of any queued data, and
+     *  the channels are told that the connection is back.
+     *
+     *  @return False if no path was left to reopen, and the connection
+     *          was destroyed.
+     */
+    private boolean established() {
+        mLastReceived = System.nanoTime();
+        mKeepAliveSentAt = 0;
+        mTimedOut = false;
+        mEstablished = true;
+
+        startHeartbeat();
+
+        if (mReconnecting == false) {
+            return true;
+        }
+
+        int attempts = mAttempt;
+        long elapsed = (System.nanoTime() - mLostAt) / 1000000;
+
+        mAttempt = 0;
+        mLastRecoveryTime = elapsed;
+        mReconnects.incrementAndGet();
+
+        List<Subscription> reopened = new ArrayList<Subscription>();
+
+        synchronized (this) {
+            List<Frame> frames = new ArrayList<Frame>();
+            Set<Integer> ptrs = new HashSet<Integer>();
+
+            mReopening = true;
+
+            for (Subscription subscription : mChannelsByPath.values()) {
+                synchronized (subscription) {
+                    if (subscription.pending) {
+                        // Its channel is about to queue the request, and
+                        // waits for the old session to be discarded
+                        continue;
+                    }
+
+                    if (subscription.closing) {
+                        // The server forgot the path with the session, so
+                        // a pending close is completed locally.
+                        if (subscription.ptr > 0) {
+                            mChannelsByRoute.remove(subscription.ptr,
+                                                    subscription);
+                        }
+                        mChannelsByPath.remove(subscription.path,
+                                               subscription);
+                        subscription.postFrame(Frame.SIGNAL,
+                                               Frame.endFrame(subscription.ptr));
+                        continue;
+                    }
+
+                    subscription.openFrame = null;
+                    subscription.requestedAt = System.nanoTime();
+
+                    if (subscription.ptr == 0) {
+                        subscription.opening = false;
+                        frames.add(Frame.resolveFrame(subscription.path.array()));
+                    } else {
+                        subscription.opening = true;
+                        ptrs.add(subscription.ptr);
+                        frames.add(Frame.openFrame(subscription.ptr,
+                                                   subscription.mode,
+                                                   subscription.token));
+                    }
+
+                    reopened.add(subscription);
+                }
+            }
+
+            for (Frame frame : mQueue.discardSession(ptrs)) {
+                frameDropped(frame);
+            }
+
+            mReopening = false;
+            mReconnecting = false;
+
+            // A path still pending is opened by its own channel
+            if (mChannelsByPath.isEmpty()) {
+                destroy(null);
+                return false;
+            }
+
+            enqueueFrames(frames);
+        }
+
+        for (Subscription subscription : reopened) {
+            for (Channel channel : subscription.channels) {
+                channel.postReconnected(attempts, elapsed);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *  Called when an established connection is lost. The connection is
+     *  reopened if there is a reconnect policy, otherwise it is destroyed.
+     *
+     *  @param error The cause, passed to the channels if the connection
+     *               cannot be reopened.
+     */
+    private void connectionLost(ChannelException error) {
+        boolean reconnect;
+
+        synchronized (this) {
+            if (mDestroying || mReconnecting) {
+                return;
+            }
+
+            reconnect = mReconnect != null &&
+                        mEstablished &&
+                        mChannelsByPath.isEmpty() == false;
+
+            if (reconnect) {
+                mReconnecting = true;
+                mLostError = error;
+                mLostAt = System.nanoTime();
+            }
+        }
+
+        if (reconnect == false) {
+            destroy(error);
+            return;
+        }
+
+        closeSocket();
+
+        if (mLoop != null) {
+            scheduleAttempt(error);
+        }
+    }
+
+    /**
+     *  Called when connecting or the handshake fails.
+     *
+     *  @param error The cause.
+     */
+    private void connectFailed(ChannelException error) {
+        if (mReconnecting == false) {
+            destroy(error);
+            return;
+        }
+
+        mLostError = error;
+        closeSocket();
+
+        if (mLoop != null) {
+            scheduleAttempt(error);
+        }
+    }
+
+    /**
+     *  Schedule the next reconnect attempt, or destroy the connection if
+     *  the policy allows no more attempts.
+     *
+     *  @param error The last error, passed to the channels on destroy.
+     *  @return The delay before the attempt, or -1 if destroyed.
+     */
+    private long scheduleAttempt(ChannelException error) {
+        int attempt = ++mAttempt;
+
+        if (mDestroying) {
+            return -1;
+        }
+
+        if (mReconnect.allows(attempt) == false) {
+            destroy(error);
+            return -1;
+        }
+
+        long delay = mReconnect.getDelay(attempt);
+
+        for (Subscription subscription : mChannelsByPath.values()) {
+            for (Channel channel : subscription.channels) {
+                channel.postReconnecting(attempt, delay);
+            }
+        }
+
+        if (mLoop != null) {
+            mSetupExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        return delay;
+    }
+
+    /**
+     *  Close the socket of a lost session and stop serving it.
+     */
+    private void closeSocket() {
+        Sender sender = mSender;
+
+        if (sender != null) {
+            mSender = null;
+            sender.stop();
+        }
+
+        SocketChannel channel = mSocketChannel;
+        TlsChannel tls = mTls;
+
+        mSocketChannel = null;
+        mSocket = null;
+        mTls = null;
+        mKey = null;
+        mHandshake = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        if (tls != null) {
+            try {
+                tls.close();
+            } catch (IOException e) {
+            }
+        }
+
+        // Only the loop thread touches the encoder, and it is the one
+        // that finds out that the connection is lost.
+        if (mEncoder != null) {
+            mEncoder.discard();
+            mEncoder.dispose();
+            mEncoder = null;
+        }
+    }
+
+    /**
+     *  Start sending heartbeats, unless disabled or already started.
+     */
+    private synchronized void startHeartbeat() {
+        if (mHeartbeatInterval == 0 || mHeartbeat != null || mDestroying) {
+            return;
+        }
+
+        long period = Math.max(1, mHeartbeatInterval / 2);
+
+        mHeartbeat = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                heartbeat();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *  Called periodically on the scheduler. Sends a KEEPALIVE frame if
+     *  nothing was received for the interval, and declares the
+     *  connection dead after the timeout.
+     */
+    private void heartbeat() {
+        SocketChannel channel = mSocketChannel;
+
+        if (mDestroying || mReconnecting || channel == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long silence = (now - mLastReceived) / 1000000;
+
+        if (mHeartbeatTimeout > 0 && silence >= mHeartbeatTimeout) {
+            if (mTimedOut == false) {
+                // Have the reading thread find out, so that the loss is
+                // handled the same way as any other.
+                mTimedOut = true;
+                try {
+                    channel.socket().shutdownInput();
+                } catch (IOException e) {
+                }
+            }
+            return;
+        }
+
+        long sentAt = mKeepAliveSentAt;
+
+        // A heartbeat that is not answered within the interval is given
+        // up on, so that the next one is sent.
+        if (sentAt != 0 && isKeepAliveExpired(sentAt, now)) {
+            mKeepAliveSentAt = sentAt = 0;
+        }
+
+        if (silence >= mHeartbeatInterval && sentAt == 0) {
+            mKeepAliveSentAt = now;
+            enqueueFrame(Frame.keepaliveFrame());
+        }
+    }
+
+    /**
+     *  Checks if a heartbeat has gone unanswered for too long for a
+     *  KEEPALIVE to be taken as its answer.
+     *
+     *  @param sentAt When the heartbeat was queued, from System.nanoTime.
+     *  @param now The current time, from System.nanoTime.
+     */
+    private boolean isKeepAliveExpired(long sentAt, long now) {
+        return (now - sentAt) / 1000000 >= mHeartbeatInterval;
+    }
+
+    /**
+     *  Returns the error for a connection that could not be read from.
+     */
+    private ChannelException readError() {
+        if (mTimedOut) {
+            return new ChannelException("Connection timed out");
+        }
+        return new ChannelException("Could not read from the connection");
+    }
+
+    /**
+     *  Add a round-trip time sample to the smoothed estimate.
+     *
+     *  @param since When the request was queued, from System.nanoTime.
+     */
+    private void sampleRoundTrip(long since) {
+        long sample = (System.nanoTime() - since) / 1000;
+        long rtt = mRoundTripTime;
+
+        mRoundTripTime = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+    }
+
+    /**
+     *  Returns the smoothed round-trip time in microseconds, or -1 if
+     *  there is no sample yet.
+     */
+    long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /**
+     *  Returns the number of times the connection was reopened.
+     */
+    int getReconnectCount() {
+        return mReconnects.get();
+    }
+
+    /**
+     *  Returns how long, in ms, the last reconnect took from losing the
+     *  connection until it was back.
+     */
+    long getLastRecoveryTime() {
+        return mLastRecoveryTime;
+    }
+
+    /**
+     *  Connect the connection and create the handshake.
+     *
+     *  @param blocking False to connect a non-blocking socket, and leave
+     *                  the rest to the selector loop.
+     */
+    private void connect(boolean blocking)
+        throws UnresolvedAddressException, IOException, SecurityException {
+
+        InetAddress ip = InetAddress.getByName(mHost);
+        SocketAddress address = new InetSocketAddress(ip, mPort);
+        SocketChannel channel = SocketChannel.open();
+
+        mSocketChannel = channel;
+        mSocket = channel.socket();
+        mHandshake = new Handshake(mHost);
+
+        if (mSecure) {
+            mTls = createTls(channel);
+        }
+
+        try {
+            mSocket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            System.err.println("WARNING: Could not set TCP_NODELAY");
+        }
+
+        if (blocking) {
+            channel.connect(address);
+
+            if (mTls != null) {
+                while (mTls.handshake() == false);
+            }
+            return;
+        }
+
+        mParser = new FrameParser(mReadPool);
+        mEncoder = new FrameEncoder(this,
+                                    mHeaderPool,
+                                    mSendBatchFrames,
+                                    mSendBatchBytes);
+
+        channel.configureBlocking(false);
+        channel.connect(address);
+        mLoop.register(this);
+    }
+	
+
+    /**
+     *  Create the TLS session of a socket. Sessions are created for the
+     *  host and port, so that the session cache can resume them.
+     *
+     *  @param channel The socket channel.
+     */
+    private TlsChannel createTls(SocketChannel channel) throws SSLException {
+        SSLEngine engine;
+
+        try {
+            engine = getSSLContext().createSSLEngine(mHost, mPort);
+        } catch (GeneralSecurityException e) {
+            throw new SSLException(e.getMessage());
+        }
+
+        engine.setUseClientMode(true);
+
+        HostnameVerifier verifier = mHostnameVerifier;
+
+        if (verifier == null) {
+            try {
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+            } catch (NoSuchMethodError e) {
+                // Older platforms leave host names to the caller
+                verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+            }
+        }
+
+        return new TlsChannel(channel, engine, mHost, verifier);
+    }
+
+    /**
+     *  Returns the channel to read decoded data from.
+     */
+    private ReadableByteChannel input() {
+        return mTls != null ? mTls : mSocketChannel;
+    }
+
+    /**
+     *  Returns the channel to write data to.
+     */
+    private GatheringByteChannel output() {
+        return mTls != null ? mTls : mSocketChannel;
+    }
+
+    /**
+     *  Send the handshake request, and any pipelined frames, and read
+     *  the response on a blocking socket.
+     *
+     *  @param parser The parser to pass data after the response to.
+     */
+    private void handshakeHandler(FrameParser parser)
+        throws ChannelException, IOException {
+        GatheringByteChannel channel = output();
+        Handshake handshake = mHandshake;
+        ByteBuffer request = handshake.getRequest();
+
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+
+        if (mPipelining) {
+            FrameEncoder encoder = new FrameEncoder(this,
+                                                    mHeaderPool,
+                                                    mSendBatchFrames,
+                                                    mSendBatchBytes);
+            try {
+                Frame frame;
+
+                while (encoder.isFull() == false &&
+                       (frame = mQueue.poll()) != null) {
+                    encoder.add(frame);
+                }
+
+                while (encoder.hasRemaining()) {
+                    encoder.write(channel);
+                }
+            } catch (IOException e) {
+                encoder.discard();
+                throw e;
+            } finally {
+                encoder.dispose();
+            }
+        }
+
+        while (handshake.read(input()) == false);
+
+        parser.add(handshake.getLeftover());
+        mHandshake = null;
+    }
+	
+	
+    /**
+     *  Handles all incoming data.
+     */
+    public void receiveHandler(FrameParser parser) {
+        ReadableByteChannel channel = input();
+
+        try {
+            // Frames that arrived along with the handshake response
+            processFrames(parser);
+        } catch (IllegalStateException e) {
+            destroy(ChannelException.protocolError());
+            return;
+        } catch (RuntimeException e) {
+            destroy(ChannelException.uncaught(e));
+            return;
+        }
+
+        for (;;) {
+            int n;
+
+            try {
+                n = parser.read(channel);
+            } catch (Exception e) {
+                n = -1;
+            }
+
+            if (n < 0) {
+                connectionLost(readError());
+                break;
+            }
+
+            mLastReceived = System.nanoTime();
+
+            try {
+                processFrames(parser);
+            } catch (IllegalStateException e) {
+                destroy(ChannelException.protocolError());
+                break;
+            } catch (RuntimeException e) {
+                destroy(ChannelException.uncaught(e));
+                break;
+            }
+        }
+    }
+
+    /**
+     *  Process every complete frame in the parser.
+     *
+     *  @param parser The parser.
+     */
+    private void processFrames(FrameParser parser) {
+        Frame frame;
+
+        while ((frame = parser.next()) != null) {
+            processFrame(frame);
+        }
+    }
+
+    /**
+     *  Dispatch a received frame.
+     *
+     *  @param frame The frame.
+     */
+    private void processFrame(Frame frame) {
+        int op = frame.getOp();
+
+        mFramesIn.increment(op);
+        mBytesIn.add(op, frame.getSize());
+
+        switch (op) {
+
+            case Frame.KEEPALIVE:
+                // The server may send keepalives of its own, only one
+                // that arrives soon after ours is sampled as the answer.
+                long sentAt = mKeepAliveSentAt;
+                if (sentAt != 0) {
+                    mKeepAliveSentAt = 0;
+
+                    if (isKeepAliveExpired(sentAt, System.nanoTime()) == false) {
+                        sampleRoundTrip(sentAt);
+                    }
+                }
+                break;
+
+            // Only messages are handed on as they are. Other frames are
+            // kept, or outlive the parser's frame, so they are detached.
+            case Frame.OPEN:
+                processOpenFrame(frame.detach());
+                break;
+
+            case Frame.SIGNAL:
+                processDataFrame(frame.detach());
+                break;
+
+            case Frame.DATA:
+                processDataFrame(frame);
+                break;
+
+            case Frame.RESOLVE:
+                processResolveFrame(frame.detach());
+                break;
+        }
+    }
+
+    /**
+     *  Returns the number of bytes queued but not yet written.
+     */
+    long getBufferedAmount() {
+        return mBufferedAmount.get();
+    }
+
+    /**
+     *  Checks if adding a number of bytes would exceed the high watermark,
+     *  and remembers that a drain should be signaled if so.
+     *
+     *  @param size The number of bytes to add.
+     *  @return True if the limit would be exceeded.
+     */
+    boolean isOverHighWatermark(int size) {
+        int high = mSendBufferHigh;
+
+        if (high > 0 && mBufferedAmount.get() + size > high) {
+            mOverHighWatermark.set(true);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  Checks if the current thread is the one that writes the send
+     *  queue, which must never wait for the queue to drain.
+     */
+    boolean isWriterThread() {
+        if (mLoop != null) {
+            return mLoop.isLoopThread();
+        }
+
+        Sender sender = mSender;
 
-                int n = -1;
-                ByteBuffer data = frame.getBytes();
-                int size = data.capacity();
-                int offset = 0;
+        return sender != null && sender.isSenderThread();
+    }
 
-                try {
-                    while(offset < size) {
-                        n = mChannel.write(data);
-                        offset += n;
-                    }
-                } catch (Exception e) {
-                    return;
-                }
-            }
-        }
+    boolean isBelowLowWatermark() {
+        return mSendBufferHigh == 0 || mBufferedAmount.get() <= mSendBufferLow;
+    }
+
+    void addBufferedAmount(int size) {
+        mBufferedAmount.addAndGet(size);
     }
 
     /**
-     *  Return an available connection or create a new one.
+     *  Called by the encoder once a frame is completely written.
      *
-     *  @param host The host associated with the connection.
-     *  @param port The port associated with the connection.
-     *  @param channel The Channel.
-     *  @return The connection.
+     *  @param frame The frame.
+     *  @param size The number of bytes written for the frame.
      */
-    static Connection getConnection(String protocol,
-                                    String host,
-                                    int port,
-                                    Channel channel) throws ChannelException {
-        Connection connection = null;
-        ArrayList<Connection> connections;
-        String id;
-        ByteBuffer path;
-
-        id = protocol + host + port;
-        path = ByteBuffer.wrap(channel.getBinaryPath());
+    void frameWritten(Frame frame, int size) {
+        int op = frame.getOp();
 
-        synchronized(LOCK) {
-            if ((connections = mConnections.get(id)) == null) {
-                connections = new ArrayList<Connection>();
-                mConnections.put(id, connections);
-            } else {
-                for (Connection conn : connections) {
-                    if (conn.isAvailable() &&
-                        conn.mChannelsByPath.containsKey(path) == false) {
-                        connection = conn;
-                        break;
-                    }
-                }
-            }
+        mFramesOut.increment(op);
+        mBytesOut.add(op, size);
 
-            if (connection == null) {
-                connection = new Connection(id, host, port);
-                connections.add(connection);
-                connection.mChannelsByPath.put(path, channel);
+        release(frame);
+        frame.recycle();
+    }
 
-                try {
-                    connection.mThread.start();
-                } catch (IllegalThreadStateException e) {
-                    connections.remove(connection);
-                    throw new ChannelException("Could not create connection thread");
-                }
-            }
+    /**
+     *  Called for a queued frame that will never be written.
+     *
+     *  @param frame The frame.
+     */
+    void frameDropped(Frame frame) {
+        mFramesDropped.increment(0);
+        release(frame);
+        frame.recycle();
+    }
 
+    /**
+     *  Drop the frames left in the queue of a destroyed connection, so
+     *  that pooled payloads go back to their pool.
+     */
+    private void dropQueued() {
+        for (Frame frame : mQueue.drain()) {
+            frameDropped(frame);
         }
+    }
 
-        return connection;
+    /**
+     *  Drop the batch held by the encoder of a destroyed connection.
+     *  Called on the loop thread, which owns the encoder.
+     */
+    void disposeEncoder() {
+        if (mEncoder != null) {
+            mEncoder.discard();
+            mEncoder.dispose();
+            mEncoder = null;
+        }
     }
 
+    /**
+     *  Count a frame that was dropped before it was queued.
+     */
+    void countDropped() {
+        mFramesDropped.increment(0);
+    }
 
-    static void disposeConnection(Connection connection) {
-        String id;
+    /**
+     *  Returns a snapshot of the statistics of the connection.
+     *
+     *  @return The statistics.
+     */
+    public ConnectionStats getStats() {
+        ConnectionStats stats = new ConnectionStats(mFramesIn,
+                                                    mBytesIn,
+                                                    mFramesOut,
+                                                    mBytesOut);
+
+        stats.mFramesDropped = mFramesDropped.get(0);
+        stats.mQueueDepth = mQueue.size();
+        stats.mQueueHighWater = mQueue.highWater();
+        stats.mReconnects = mReconnects.get();
+        stats.mHandshakeTime = mHandshakeTime;
+        stats.mLastRecoveryTime = mLastRecoveryTime;
+        stats.mRoundTripTime = mRoundTripTime;
+        stats.mChannels = mChannelsByPath.size();
+
+        return stats;
+    }
 
-        id = connection.mId;
+    /**
+     *  Stop counting a frame as buffered, and signal drains.
+     *
+     *  @param frame The frame.
+     */
+    private void release(Frame frame) {
+        Channel owner = frame.getOwner();
 
-        if (id != null) {
+        // Buffered amounts are reset when the connection is destroyed
+        if (owner == null || mDestroying) {
+            return;
+        }
 
-            connection.mId = null;
+        int size = frame.getBufferedSize();
 
-            ArrayList<Connection> connections;
+        mBufferedAmount.addAndGet(-size);
+        owner.frameWritten(size);
 
-            if ((connections = mConnections.get(id)) == null) {
-                return;
+        if (isBelowLowWatermark() && mOverHighWatermark.compareAndSet(true, false)) {
+            for (Subscription subscription : mChannelsByPath.values()) {
+                for (Channel channel : subscription.channels) {
+                    channel.checkDrain();
+                }
             }
-
-            connections.remove(connection);
         }
     }
 
     /**
-     *  Initializes a new Channel instance.
+     *  Queue several frames at once, so that they are written together.
      *
-     *  @param host The host the connection should connect to.
-     *  @param port The port the connection should connect to.
+     *  @param frames The frames.
      */
-    public Connection(String id, String host, int port) {
-        mId = id;
-        mHost = host;
-        mPort = (short)port;
+    void enqueueFrames(List<Frame> frames) {
+        if (mDestroying) {
+            for (Frame frame : frames) {
+                frameDropped(frame);
+            }
+            return;
+        }
 
-        mChannelsByRoute = new ConcurrentHashMap<Integer, Channel>();
-        mChannelsByPath = new ConcurrentHashMap<ByteBuffer, Channel>();
+        mQueue.addAll(frames);
+
+        if (mDestroying) {
+            dropQueued();
+            return;
+        }
 
-        mThread = new Thread(this);
-        mSender = new Sender();
+        if (mLoop != null && mWriteRequested.compareAndSet(false, true)) {
+            mLoop.requestWrite(this);
+        }
     }
 
-    /**
-     *  Decrease the reference count.
-     *
-     *  @param channelPtr The channel to dealloc.
-     */
-    void deallocChannel(Channel channel) {
+    public void enqueueFrame(Frame frame) {
+        if (mDestroying) {
+            frameDropped(frame);
+            return;
+        }
+
+        mQueue.add(frame);
 
         if (mDestroying) {
+            // Queued after the destroy dropped the queue
+            dropQueued();
             return;
         }
 
-        synchronized (LOCK) {
-            int ptr = channel.getPtr();
+        if (mLoop != null && mWriteRequested.compareAndSet(false, true)) {
+            mLoop.requestWrite(this);
+        }
+    }
 
-            if (ptr > 0) {
-                mChannelsByRoute.remove(ptr);
-            }
+    /**
+     *  Register the socket with a selector. Called on the loop thread.
+     *
+     *  @param selector The selector of the loop.
+     */
+    void registerWith(Selector selector) throws IOException {
+        SocketChannel channel = mSocketChannel;
 
-            mChannelsByPath.remove(ByteBuffer.wrap(channel.getBinaryPath()));
+        if (channel == null) {
+            return;
+        }
 
-            if (mChannelsByPath.size() == 0) {
-                destroy(null);
-            }
+        int ops = SelectionKey.OP_READ;
+
+        if (channel.isConnectionPending()) {
+            ops = SelectionKey.OP_CONNECT;
+        } else if (mHandshake != null || mQueue.size() > 0) {
+            ops |= SelectionKey.OP_WRITE;
         }
 
+        mKey = channel.register(selector, ops, this);
     }
-	
-    public void run() {
-        try {
-            connect();
-            handshakeHandler();
-            mSender.start(mSocketChannel);
-            receiveHandler();
-        } catch (UnknownHostException e) {
-            destroy(ChannelException.unableToResolve(mHost));
-        } catch (UnresolvedAddressException e) {
-            destroy(ChannelException.unableToResolve(mHost));
-        } catch (IOException e) {
-            destroy(ChannelException.unableToConnect(mHost, mPort));
-        } catch (ChannelException e) {
-            destroy(e);
-        } catch (SecurityException e) {
-            destroy(new ChannelException(e.getMessage()));
-        }
+
+    SelectionKey getSelectionKey() {
+        return mKey;
     }
 
     /**
-     *  Connect the connection.
+     *  Finish connecting, and start sending the handshake request.
+     *  Called on the loop thread.
      */
-    private void connect()
-        throws UnresolvedAddressException, IOException, SecurityException {
+    void handleConnect() throws IOException {
+        SocketChannel channel = (SocketChannel)mKey.channel();
 
-        InetAddress ip = InetAddress.getByName(mHost);
-        SocketAddress address = new InetSocketAddress(ip, mPort);
+        if (channel.finishConnect()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
 
-        mSocketChannel = SocketChannel.open(address);
-        mSocket = mSocketChannel.socket();
-        
-        try {
-            mSocket.setTcpNoDelay(true);
-        } catch (SocketException e) {
-            System.err.println("WARNING: Could not set TCP_NODELAY");
+    /**
+     *  Continue the TLS handshake, and start sending the upgrade request
+     *  once it is done. Called on the loop thread.
+     */
+    private void handshakeTls() throws IOException {
+        if (mTls.handshake()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else if (mTls.hasPendingOutput()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            mKey.interestOps(SelectionKey.OP_READ);
         }
+    }
 
-        DataOutputStream stream = new DataOutputStream(mSocket.getOutputStream());
+    /**
+     *  Write encrypted data that is pending, if any.
+     *
+     *  @return True if nothing is left to write.
+     */
+    private boolean flushTls() throws IOException {
+        return mTls == null || mTls.flush();
+    }
 
-        stream.writeBytes("GET / HTTP/1.1\r\n" +
-                          "Connection: upgrade\r\n" +
-                          "Upgrade: winksock/1\r\n" +
-                          "Host: " + mHost);
+    /**
+     *  Read and process available data. Called on the loop thread.
+     */
+    void handleRead() throws IOException {
+        if (mTls != null && mTls.isHandshaking()) {
+            handshakeTls();
+            return;
+        }
 
-        stream.writeBytes("\r\n\r\n");
+        // Records that were decrypted, but did not fit the last read, do
+        // not make the socket readable again.
+        while (readOnce() && mTls != null && mTls.hasBufferedInput());
     }
-	
 
     /**
-     *  Handle the Handshake response frame.
+     *  Read and process data once.
+     *
+     *  @return False if the connection stopped being served.
      */
-    private void handshakeHandler() throws ChannelException, IOException {
-        boolean fieldsLeft = true;
-        boolean gotResponse = false;
-        BufferedReader stream;
-        
-        
-        stream = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+    private boolean readOnce() throws IOException {
+        ReadableByteChannel channel = input();
 
-        while (fieldsLeft) {
-            String line;
-        	
+        if (mHandshake != null) {
             try {
-                line = stream.readLine();
-                if (line.length() == 0) {
-                    fieldsLeft = false;
+                if (mHandshake.read(channel) == false) {
+                    return true;
                 }
-            } catch (IOException e) {
-                throw ChannelException.badHttpResponse();
-            }
-        	
-            if (fieldsLeft) {
-                // First line i a response, all others are fields
-                if (!gotResponse) {
-                    int code = 0;
-                    int pos1, pos2;
-        			
-                    // Take the response code from "HTTP/1.1 101
-                    // Switching Protocols"
-                    pos1 = line.indexOf(" ");
-                    if (pos1 != -1) {
-                        pos2 = line.indexOf(" ", pos1 + 1);
-        				
-                        if (pos2 != -1) {
-                            try {
-                                code = Integer.parseInt(line.substring(pos1 + 1, pos2));
-                            } catch (NumberFormatException e) {
-                                throw ChannelException.badHttpResponse();
-                            }
-                        }
-                    }
+            } catch (ChannelException e) {
+                mHandshake = null;
+                connectFailed(e);
+                return false;
+            }
 
-                    if (code != 101) {
-                        throw ChannelException.unexpectedResponseCode(code);
-                    }
+            mParser.add(mHandshake.getLeftover());
+            mHandshake = null;
 
-                    gotResponse = true;
-                } else {
-                    line = line.toLowerCase();
-                    int pos;
-
-                    pos = line.indexOf("upgrade: ");
-                    if (pos != -1) {
-                        String header = line.substring(9);
-                        if (!header.equals("winksock/1")) {
-                            throw new ChannelException("Bad protocol version: " +
-                                                   header);
-                        }
-                    }
-                }
+            if (handshakeDone() == false) {
+                return false;
             }
+
+            if (mQueue.size() > 0) {
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } else if (mParser.read(channel) < 0) {
+            connectionLost(readError());
+            return false;
+        }
+
+        mLastReceived = System.nanoTime();
+
+        try {
+            processFrames(mParser);
+        } catch (IllegalStateException e) {
+            destroy(ChannelException.protocolError());
+            return false;
         }
+
+        return mKey != null && mDestroying == false;
     }
-	
-	
+
     /**
-     *  Handles all incoming data.
+     *  Write queued frames until the queue is empty or the socket stops
+     *  accepting data. Called on the loop thread.
      */
-    public void receiveHandler() {
-        int size;
+    void handleWrite() throws IOException {
+        if (mTls != null && mTls.isHandshaking()) {
+            handshakeTls();
+            return;
+        }
+
+        if (flushTls() == false) {
+            return;
+        }
 
-        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + 2);
-        header.order(ByteOrder.BIG_ENDIAN);
-        ByteBuffer data;
+        GatheringByteChannel channel = output();
 
-        int offset = 0;
-        int n = 1;
+        if (mHandshake != null) {
+            ByteBuffer request = mHandshake.getRequest();
 
-        for (;;) {
-            try {
-                while(offset < Frame.HEADER_SIZE + 2 && n >= 0) {
-                    n = mSocketChannel.read(header);
-                    offset += n;
+            if (request.hasRemaining()) {
+                channel.write(request);
+
+                if (request.hasRemaining()) {
+                    return;
                 }
-            } catch (Exception e) {
-                n = -1;
             }
 
-            if (n <= 0) {
-                destroy(new ChannelException("Could not read from the connection"));
-                break;
+            if (mPipelining == false) {
+                // The rest waits for the response
+                if (flushTls()) {
+                    mKey.interestOps(SelectionKey.OP_READ);
+                }
+                return;
             }
+        }
 
-            header.flip();
+        for (int i = 0; i < MAX_WRITES_PER_EVENT; i++) {
 
-            size = (int)header.getShort() & 0xFFFF;
-            data = ByteBuffer.allocate(size - Frame.HEADER_SIZE);
-            data.order(ByteOrder.BIG_ENDIAN);
+            if (mEncoder.isEmpty()) {
+                Frame frame;
 
-            try {
-                while(offset < size + 2 && n >= 0) {
-                    n = mSocketChannel.read(data);
-                    offset += n;
+                while (mEncoder.isFull() == false &&
+                       (frame = mQueue.poll()) != null) {
+                    if (frame.isNullFrame() == false) {
+                        mEncoder.add(frame);
+                    }
                 }
-            } catch (Exception e) {
-                n = -1;
-            }
-
-            if (n <= 0) {
-                destroy(new ChannelException("Could not read from the connection"));
-                break;
-            }
 
-            data.flip();
+                if (mEncoder.isEmpty()) {
+                    mWriteRequested.set(false);
 
-            Frame frame = Frame.fromHeader(header, data);
+                    // A frame may have been added before the flag was
+                    // cleared, without requesting a write.
+                    if (mQueue.size() > 0) {
+                        continue;
+                    }
 
-            switch (frame.getOp()) {
+                    if (flushTls()) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+            }
 
-                case Frame.KEEPALIVE:
-                    break;
+            mEncoder.write(channel);
 
-                case Frame.OPEN:
-                    processOpenFrame(frame);
-                    break;
+            if (mEncoder.hasRemaining()) {
+                return;
+            }
+        }
+    }
 
-                case Frame.SIGNAL:
-                case Frame.DATA:
-                    processFrame(frame);
-                    break;
+    void handleIOError(IOException e) {
+        if (mHandshake != null) {
+            mHandshake = null;
 
-                case Frame.RESOLVE:
-                    processResolveFrame(frame);
-                    break;
+            if (e instanceof SSLException) {
+                connectFailed(ChannelException.tlsFailed(mHost, (SSLException)e));
+            } else {
+                connectFailed(ChannelException.unableToConnect(mHost, mPort));
             }
-
-            offset = 0;
-            n = 1;
-            header.clear();
+            return;
         }
+
+        connectionLost(readError());
     }
 
-    public void enqueueFrame(Frame frame) {
-        if (mSender != null) {
-            mSender.queue.add(frame);
-        }
+    /**
+     *  Called on the loop thread when serving the connection throws
+     *  unexpectedly. Only this connection is destroyed.
+     */
+    void handleFailure(RuntimeException e) {
+        destroy(ChannelException.uncaught(e));
     }
 
     /**
@@ -429,19 +2034,40 @@ public class Connection implements Runnable {
      *  @param payload The content of the open frame.
      */
     private void processOpenFrame(Frame frame) {
-        Channel channel;
+        Subscription subscription;
 
         int ptr = frame.getPtr();
 
-        if ((channel = mChannelsByRoute.get(ptr)) == null) {
+        if ((subscription = mChannelsByRoute.get(ptr)) == null) {
             // Ignore if no pointer is defined.
             return;
         }
 
-        channel.postFrame(Frame.OPEN, frame);
+        Channel[] channels;
+
+        synchronized (subscription) {
+            if (subscription.requestedAt != 0) {
+                sampleRoundTrip(subscription.requestedAt);
+                subscription.requestedAt = 0;
+            }
+
+            if (frame.getFlag() == Frame.OPEN_ALLOW) {
+                subscription.openFrame = frame.asReadOnly();
+            } else {
+                subscription.closing = true;
+
+                if (mResolveCache != null) {
+                    mResolveCache.remove(subscription.path);
+                }
+            }
+
+            channels = subscription.getChannels();
+        }
+
+        Subscription.postFrame(channels, Frame.OPEN, frame);
     }
 
-    void processFrame(Frame frame) {
+    void processDataFrame(Frame frame) {
         int op = frame.getOp();
 
         if (op == Frame.DATA && frame.hasPayload() == false) {
@@ -452,43 +2078,97 @@ public class Connection implements Runnable {
         int ptr = frame.getPtr();
 
         if (ptr == 0) {
-            Iterator<Channel> it = mChannelsByRoute.values().iterator();
+            // All channels share one read-only view of the payload
+            Frame shared = frame.asReadOnly();
+            Iterator<Subscription> it = mChannelsByRoute.values().iterator();
             while (it.hasNext()) {
-                Channel channel = it.next();
-                channel.postFrame(op, frame.clone());
+                for (Channel channel : it.next().channels) {
+                    channel.postFrame(op, shared);
+                }
             }
         } else {
-        	Channel channel = null;
-            if ((channel = mChannelsByRoute.get(ptr)) == null) {
+            Subscription subscription = null;
+            if ((subscription = mChannelsByRoute.get(ptr)) == null) {
                 destroy(ChannelException.protocolError());
                 return;
             }
 
-            channel.postFrame(op, frame);
+            if (frame.isEndFrame()) {
+                synchronized (subscription) {
+                    subscription.closing = true;
+                }
+            }
+
+            subscription.postFrame(op, frame);
         }
 
     }
 
     private void processResolveFrame(Frame frame) {
-        Channel channel;
+        Subscription subscription;
 
-        channel = mChannelsByPath.get(frame.getData());
+        subscription = mChannelsByPath.get(frame.getData());
 
-        if (channel == null) {
+        if (subscription == null) {
             return;
         }
 
-        mChannelsByRoute.put(frame.getPtr(), channel);
+        Channel[] channels;
+
+        synchronized (subscription) {
+            if (subscription.requestedAt != 0) {
+                sampleRoundTrip(subscription.requestedAt);
+                subscription.requestedAt = 0;
+            }
+
+            if (frame.getFlag() == Frame.OPEN_ALLOW) {
+                subscription.ptr = frame.getPtr();
+                subscription.resolveFrame = frame.asReadOnly();
+                mChannelsByRoute.put(frame.getPtr(), subscription);
+
+                if (mResolveCache != null) {
+                    mResolveCache.put(subscription.path, subscription.ptr);
+                }
+
+                // Open right away instead of waiting for the channel's
+                // dispatcher to handle the RESOLVE response.
+                if (subscription.opening == false) {
+                    subscription.opening = true;
+                    subscription.requestedAt = System.nanoTime();
+                    enqueueFrame(Frame.openFrame(subscription.ptr,
+                                                 subscription.mode,
+                                                 subscription.token));
+                }
+            } else {
+                subscription.closing = true;
+
+                if (mResolveCache != null) {
+                    mResolveCache.remove(subscription.path);
+                }
+            }
+
+            channels = subscription.getChannels();
+        }
+
+        Subscription.postFrame(channels, Frame.RESOLVE, frame);
+    }
 
-        channel.postFrame(Frame.RESOLVE, frame);
+    boolean isDestroying() {
+        return mDestroying;
     }
 
     boolean isAvailable() {
+        Socket socket = mSocket;
+
+        // A connection that is still connecting can take channels too
+        if (socket == null) {
+            return mDestroying == false;
+        }
+
         return mDestroying == false &&
-               mSocket != null &&
-               mSocket.isClosed() == false &&
-               mSocket.isInputShutdown() == false &&
-               mSocket.isOutputShutdown() == false;
+               socket.isClosed() == false &&
+               socket.isInputShutdown() == false &&
+               socket.isOutputShutdown() == false;
     }
 
     /**
@@ -497,7 +2177,7 @@ public class Connection implements Runnable {
      *  @error The cause of the destroy.
      */
     private void destroy(ChannelException error) {
-        synchronized (LOCK) {
+        synchronized (this) {
 
             if (mDestroying) {
                 return;
@@ -506,16 +2186,24 @@ public class Connection implements Runnable {
             mDestroying = true;
 
             disposeConnection(this);
+
+            if (mHeartbeat != null) {
+                mHeartbeat.cancel(false);
+                mHeartbeat = null;
+            }
         }
 
         if (mSender != null) {
-            try {
-				mSender.queue.put(Frame.nullFrame);
-			} catch (InterruptedException e) {
-			}
+            mQueue.add(Frame.nullFrame);
             mSender = null;
         }
 
+        if (mReconnecting && mThread != null &&
+            mThread != Thread.currentThread()) {
+            // Stop waiting for the next attempt
+            mThread.interrupt();
+        }
+
         if (mSocketChannel != null) {
             try {
                 mSocketChannel.close();
@@ -525,9 +2213,38 @@ public class Connection implements Runnable {
             }
         }
 
-        for (Channel channel : mChannelsByPath.values()) {
-            channel.postError(error);
-        }				
+        if (mTls != null) {
+            try {
+                mTls.close();
+            } catch (IOException e) {
+            } finally {
+                mTls = null;
+            }
+        }
+
+        dropQueued();
+
+        if (mLoop != null) {
+            // Have the loop thread drop the batch being written
+            mLoop.requestWrite(this);
+        }
+
+        mBufferedAmount.set(0);
+
+        for (Subscription subscription : mChannelsByPath.values()) {
+            Channel[] channels;
+
+            // Taken locked, so that a channel is either in it or was
+            // refused by addChannel
+            synchronized (subscription) {
+                channels = subscription.getChannels();
+            }
+
+            for (Channel channel : channels) {
+                channel.wakeSenders();
+                channel.postError(error);
+            }
+        }
 
         mChannelsByRoute.clear();
         mChannelsByPath.clear();
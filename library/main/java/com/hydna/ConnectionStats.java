@@ -0,0 +1,162 @@
+package com.hydna;
+
+/**
+ *  A snapshot of the statistics of a connection.
+ *
+ *  Frame and byte counts are kept per opcode (Opcode.KEEPALIVE, OPEN,
+ *  DATA, SIGNAL and RESOLVE) and count whole frames, headers included.
+ *  Outbound frames are counted once they are written to the socket.
+ */
+public class ConnectionStats {
+
+    static final int OPCODES = 8;
+
+    private final long[] mFramesIn = new long[OPCODES];
+    private final long[] mBytesIn = new long[OPCODES];
+    private final long[] mFramesOut = new long[OPCODES];
+    private final long[] mBytesOut = new long[OPCODES];
+
+    long mFramesDropped;
+    int mQueueDepth;
+    int mQueueHighWater;
+    int mReconnects;
+    long mHandshakeTime;
+    long mLastRecoveryTime;
+    long mRoundTripTime;
+    int mChannels;
+
+    ConnectionStats(StripedCounter framesIn,
+                    StripedCounter bytesIn,
+                    StripedCounter framesOut,
+                    StripedCounter bytesOut) {
+        for (int op = 0; op < OPCODES; op++) {
+            mFramesIn[op] = framesIn.get(op);
+            mBytesIn[op] = bytesIn.get(op);
+            mFramesOut[op] = framesOut.get(op);
+            mBytesOut[op] = bytesOut.get(op);
+        }
+    }
+
+    /**
+     *  Returns the number of frames received with an opcode.
+     *
+     *  @param op The opcode, for example Opcode.DATA.
+     *  @return The number of frames.
+     */
+    public long getFramesIn(int op) {
+        return mFramesIn[op & (OPCODES - 1)];
+    }
+
+    public long getFramesIn() {
+        return sum(mFramesIn);
+    }
+
+    /**
+     *  Returns the number of bytes received in frames with an opcode.
+     *
+     *  @param op The opcode, for example Opcode.DATA.
+     *  @return The number of bytes.
+     */
+    public long getBytesIn(int op) {
+        return mBytesIn[op & (OPCODES - 1)];
+    }
+
+    public long getBytesIn() {
+        return sum(mBytesIn);
+    }
+
+    /**
+     *  Returns the number of frames written with an opcode.
+     *
+     *  @param op The opcode, for example Opcode.DATA.
+     *  @return The number of frames.
+     */
+    public long getFramesOut(int op) {
+        return mFramesOut[op & (OPCODES - 1)];
+    }
+
+    public long getFramesOut() {
+        return sum(mFramesOut);
+    }
+
+    /**
+     *  Returns the number of bytes written in frames with an opcode.
+     *
+     *  @param op The opcode, for example Opcode.DATA.
+     *  @return The number of bytes.
+     */
+    public long getBytesOut(int op) {
+        return mBytesOut[op & (OPCODES - 1)];
+    }
+
+    public long getBytesOut() {
+        return sum(mBytesOut);
+    }
+
+    /**
+     *  Returns the number of frames that were never written, because a
+     *  send buffer was full or because the connection was lost.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     *  Returns the number of frames in the send queue.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     *  Returns the largest number of frames the send queue has held.
+     */
+    public int getQueueHighWater() {
+        return mQueueHighWater;
+    }
+
+    /**
+     *  Returns the number of times the connection was reopened.
+     */
+    public int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     *  Returns how long the last connect and handshake took, in ms.
+     */
+    public long getHandshakeTime() {
+        return mHandshakeTime;
+    }
+
+    /**
+     *  Returns how long the last reconnect took, in ms.
+     */
+    public long getLastRecoveryTime() {
+        return mLastRecoveryTime;
+    }
+
+    /**
+     *  Returns the smoothed round-trip time in microseconds, or -1.
+     */
+    public long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /**
+     *  Returns the number of open paths on the connection.
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+
+        for (long value : values) {
+            sum += value;
+        }
+
+        return sum;
+    }
+}
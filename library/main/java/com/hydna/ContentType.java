@@ -0,0 +1,9 @@
+package com.hydna;
+
+/**
+ *  The content types of messages and signals.
+ */
+public class ContentType {
+    public static final int UTF8 = 0x00;
+    public static final int BINARY = 0x01;
+}
@@ -0,0 +1,27 @@
+package com.hydna;
+
+/**
+ *  Delivers channel events directly on the I/O thread that received
+ *  them.
+ *
+ *  This has the lowest latency, but callbacks must return quickly since
+ *  no other data is read on the connection while they run. A callback
+ *  that throws closes its channel with the exception as the reason,
+ *  instead of stopping the I/O thread.
+ */
+public class DirectDispatcher extends Dispatcher {
+
+    @Override
+    protected void post(Channel channel, int what, Object obj) {
+        try {
+            deliver(channel, what, obj);
+        } catch (RuntimeException e) {
+            channel.callbackFailed(e);
+        }
+    }
+
+    @Override
+    boolean isSynchronous() {
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package com.hydna;
+
+/**
+ *  Delivers events from the I/O thread to a Channel.
+ *
+ *  A Channel posts every incoming frame and error through its
+ *  Dispatcher, which decides on what thread the Channel's callbacks
+ *  run. Implementations must deliver the events of one channel in the
+ *  order they were posted, and never two at the same time.
+ *
+ *  The library provides LooperDispatcher (the default on Android),
+ *  ExecutorDispatcher and DirectDispatcher.
+ */
+public abstract class Dispatcher {
+
+    /**
+     *  Post an event for later delivery. Called on the I/O thread.
+     *
+     *  @param channel The channel the event belongs to.
+     *  @param what The type of the event.
+     *  @param obj The event object.
+     */
+    protected abstract void post(Channel channel, int what, Object obj);
+
+    /**
+     *  Deliver a posted event to its channel, invoking its callbacks.
+     *
+     *  @param channel The channel the event belongs to.
+     *  @param what The type of the event.
+     *  @param obj The event object.
+     */
+    protected final void deliver(Channel channel, int what, Object obj) {
+        channel.handleEvent(what, obj);
+    }
+
+    /**
+     *  Checks if events are delivered before post returns. Such events
+     *  need not outlive the call.
+     */
+    boolean isSynchronous() {
+        return false;
+    }
+
+    /**
+     *  A posted event, linked into a queue by implementations that need
+     *  to hold on to it.
+     */
+    static final class Event {
+        final Channel channel;
+        final int what;
+        final Object obj;
+        Event next;
+
+        Event(Channel channel, int what, Object obj) {
+            this.channel = channel;
+            this.what = what;
+            this.obj = obj;
+        }
+    }
+}
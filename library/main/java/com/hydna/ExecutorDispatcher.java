@@ -0,0 +1,92 @@
+package com.hydna;
+
+import java.util.concurrent.Executor;
+
+/**
+ *  Delivers channel events on an Executor.
+ *
+ *  Events of all channels using the same ExecutorDispatcher are run one
+ *  at a time and in order, even on a multi-threaded executor. Use one
+ *  dispatcher per channel to let channels run in parallel.
+ */
+public class ExecutorDispatcher extends Dispatcher {
+
+    private final Executor mExecutor;
+
+    private Event mHead;
+    private Event mTail;
+    private boolean mScheduled = false;
+
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     *  Initializes a new ExecutorDispatcher.
+     *
+     *  @param executor The Executor to run callbacks on.
+     */
+    public ExecutorDispatcher(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+
+        mExecutor = executor;
+    }
+
+    @Override
+    protected void post(Channel channel, int what, Object obj) {
+        Event event = new Event(channel, what, obj);
+        boolean schedule;
+
+        synchronized (this) {
+            if (mTail == null) {
+                mHead = event;
+            } else {
+                mTail.next = event;
+            }
+            mTail = event;
+
+            schedule = mScheduled == false;
+            mScheduled = true;
+        }
+
+        if (schedule) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private void drain() {
+        boolean completed = false;
+
+        try {
+            for (;;) {
+                Event event;
+
+                synchronized (this) {
+                    event = mHead;
+
+                    if (event == null) {
+                        mScheduled = false;
+                        completed = true;
+                        return;
+                    }
+
+                    mHead = event.next;
+                    if (mHead == null) {
+                        mTail = null;
+                    }
+                }
+
+                deliver(event.channel, event.what, event.obj);
+            }
+        } finally {
+            if (completed == false) {
+                // A callback threw, let the rest of the events run later.
+                mExecutor.execute(mDrain);
+            }
+        }
+    }
+}
@@ -12,6 +12,10 @@ class Frame {
     static final int UTF8 = 0x00;
     static final int BINARY = 0x01;
 
+    // Marks the chunks of a streamed message, in the reserved bit above
+    // the content type
+    static final int CHUNK = 0x02;
+
     // Opcodes
     static final int KEEPALIVE = 0x00;
     static final int OPEN = 0x01;
@@ -36,17 +40,26 @@ class Frame {
     static int OP_BITMASK = (0x7 << OP_BITPOS);
 
     static int CTYPE_BITPOS = 6;
-    static int CTYPE_BITMASK = (0x1 << CTYPE_BITPOS);
+    static int CTYPE_BITMASK = (0x3 << CTYPE_BITPOS);
     
 
     // Upper payload limit (10kb)
     static final int PAYLOAD_MAX_LIMIT = 0xFFFF - HEADER_SIZE;
 
     private int mPtr;
-    private int mCtype;
-    private int mOp;
-    private int mFlag;
-    private byte[] mData;
+
+    // Bytes, so that the frame object stays small
+    private byte mCtype;
+    private byte mOp;
+    private byte mFlag;
+    private ByteBuffer mData;
+
+    private Channel mOwner;
+    private int mBufferedSize;
+
+    private FrameParser mSource;
+    private BufferPool mPool;
+    private PooledBuffer mBuffer;
 
     Frame() {}
 
@@ -55,21 +68,34 @@ class Frame {
                  int op,
                  int flag,
                  byte[] data) {
+        this(ptr, ctype, op, flag, data == null ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     *  Initializes a new Frame that references the remaining content of
+     *  the buffer. The content is not copied and must not be modified
+     *  until the frame is written.
+     */
+    Frame(int ptr,
+          int ctype,
+          int op,
+          int flag,
+          ByteBuffer data) {
         super();
 
-        if (data != null && data.length > PAYLOAD_MAX_LIMIT) {
+        if (data != null && data.remaining() > PAYLOAD_MAX_LIMIT) {
             throw new IllegalArgumentException("Payload max limit reached");
         }
 
         mPtr = ptr;
-        mCtype = ctype;
-        mOp = op;
-        mFlag = flag;
+        mCtype = (byte)ctype;
+        mOp = (byte)op;
+        mFlag = (byte)flag;
         mData = data;
     }
 
     public static Frame create(int ptr, int ctype, int op, int flag) {
-        return new Frame(ptr, ctype, op, flag, null);
+        return new Frame(ptr, ctype, op, flag, (ByteBuffer)null);
     }
 
     public static Frame create(int ptr,
@@ -80,6 +106,10 @@ class Frame {
         return new Frame(ptr, ctype, op, flag, data);
     }
 
+    static Frame keepaliveFrame() {
+        return new Frame(0, UTF8, KEEPALIVE, 0, (ByteBuffer)null);
+    }
+
     public static Frame resolveFrame(byte[] data) {
         return new Frame(0, UTF8, RESOLVE, 0, data);
     }
@@ -92,18 +122,30 @@ class Frame {
         return new Frame(ptr, ctype, DATA, prio, data);
     }
 
+    static Frame dataFrame(int ptr, int ctype, int prio, ByteBuffer data) {
+        return new Frame(ptr, ctype, DATA, prio, data);
+    }
+
     public static Frame emitFrame(int ptr, int ctype, byte[] data) {
         return new Frame(ptr, ctype, SIGNAL, SIG_EMIT, data);
     }
 
+    static Frame emitFrame(int ptr, int ctype, ByteBuffer data) {
+        return new Frame(ptr, ctype, SIGNAL, SIG_EMIT, data);
+    }
+
     public static Frame endFrame(int ptr) {
-        return new Frame(ptr, UTF8, SIGNAL, SIG_END, null);
+        return new Frame(ptr, UTF8, SIGNAL, SIG_END, (ByteBuffer)null);
     }
 
     public static Frame endFrame(int ptr, int ctype, byte[] data) {
         return new Frame(ptr, ctype, SIGNAL, SIG_END, data);
     }
 
+    static Frame endFrame(int ptr, int ctype, ByteBuffer data) {
+        return new Frame(ptr, ctype, SIGNAL, SIG_END, data);
+    }
+
     public static Frame fromHeader(ByteBuffer header, ByteBuffer buffer) {
     	int ptr = header.getInt(); 
         byte of = header.get();
@@ -119,16 +161,144 @@ class Frame {
                          data);
     }
 
+    /**
+     *  Create a frame from a decoded header. The payload is referenced,
+     *  not copied.
+     *
+     *  @param ptr The channel pointer.
+     *  @param of The op/flag/ctype header byte.
+     *  @param data The payload or null.
+     */
+    static Frame fromBytes(int ptr, byte of, ByteBuffer data) {
+        return new Frame(ptr,
+                         (of & CTYPE_BITMASK) >> CTYPE_BITPOS,
+                         (of & OP_BITMASK) >> OP_BITPOS,
+                         (of & FLAG_BITMASK),
+                         data);
+    }
+
+    /**
+     *  Set the content of a frame that a parser reuses for every frame it
+     *  parses.
+     *
+     *  @param source The parser.
+     *  @param ptr The channel pointer.
+     *  @param of The op/flag/ctype header byte.
+     *  @param data A view of the payload in the parser's buffer, or null.
+     */
+    void reset(FrameParser source, int ptr, byte of, ByteBuffer data) {
+        mSource = source;
+        mPtr = ptr;
+        mCtype = (byte)((of & CTYPE_BITMASK) >> CTYPE_BITPOS);
+        mOp = (byte)((of & OP_BITMASK) >> OP_BITPOS);
+        mFlag = (byte)(of & FLAG_BITMASK);
+        mData = data;
+    }
+
+    /**
+     *  Checks if the frame is reused, and its payload overwritten, once
+     *  the parser parses the next frame.
+     */
+    boolean isTransient() {
+        return mSource != null;
+    }
+
+    /**
+     *  Returns a frame that can be kept after the parser has moved on,
+     *  with a copy of the payload in an array of its own. Frames that
+     *  are not transient are returned as they are.
+     */
+    Frame detach() {
+        if (mSource == null) {
+            return this;
+        }
+
+        ByteBuffer data = null;
+
+        if (mData != null) {
+            byte[] copy = new byte[mData.remaining()];
+            int position = mData.position();
+
+            mData.get(copy);
+            mData.position(position);
+            data = ByteBuffer.wrap(copy);
+        }
+
+        return new Frame(mPtr, mCtype, mOp, mFlag, data);
+    }
+
+    /**
+     *  Returns a frame that can be kept after the parser has moved on,
+     *  holding a reference to the parser's buffer until it is released.
+     *  Frames that are not transient are returned as they are.
+     */
+    Frame retain() {
+        if (mSource == null) {
+            return this;
+        }
+
+        if (mData == null) {
+            return detach();
+        }
+
+        Frame frame = new Frame(mPtr, mCtype, mOp, mFlag, mData.slice());
+        frame.mBuffer = mSource.retainBuffer();
+
+        return frame;
+    }
+
+    /**
+     *  Release the reference a retained frame holds. Other frames are
+     *  not affected.
+     */
+    void release() {
+        PooledBuffer buffer = takeBuffer();
+
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    /**
+     *  Take over the reference a retained frame holds, if any.
+     *
+     *  @return The buffer to release, or null.
+     */
+    PooledBuffer takeBuffer() {
+        PooledBuffer buffer = mBuffer;
+        mBuffer = null;
+        return buffer;
+    }
+
+    /**
+     *  Returns the pooled buffer the payload is a slice of, if the frame
+     *  is transient or retained, otherwise null.
+     */
+    PooledBuffer getBuffer() {
+        return mSource != null ? mSource.getBuffer() : mBuffer;
+    }
+
     boolean isNullFrame() {
         return this == nullFrame;
     }
 
+    boolean isEndFrame() {
+        return mOp == SIGNAL && mFlag == SIG_END;
+    }
+
     boolean hasPayload() {
-        return mData != null && mData.length > 0;
+        return mData != null && mData.remaining() > 0;
     }
 
     boolean isUtfPayload() {
-        return mCtype == UTF8;
+        return getContentType() == UTF8;
+    }
+
+    /**
+     *  Checks if the frame is a chunk of a streamed message.
+     */
+    boolean isChunk() {
+        return (mCtype & CHUNK) != 0;
     }
 
     int getPtr() {
@@ -136,7 +306,7 @@ class Frame {
     }
 
     int getContentType() {
-        return mCtype;
+        return mCtype & ~CHUNK;
     }
 
     int getOp() {
@@ -148,34 +318,121 @@ class Frame {
     }
 
     public Frame clone() {
-        byte[] data = null;
+        ByteBuffer data = null;
         if (mData != null) {
-            data = mData.clone();
+            data = ByteBuffer.allocate(mData.remaining());
+            data.put(mData.duplicate());
+            data.flip();
         }
         return new Frame(mPtr, mCtype, mOp, mFlag, data);
     }
 
-    ByteBuffer getData() {
-        return ByteBuffer.wrap(mData);
+    /**
+     *  Returns the encoded size of the frame, including the length prefix.
+     */
+    int getSize() {
+        return HEADER_SIZE + 2 + (mData == null ? 0 : mData.remaining());
     }
 
-    ByteBuffer getBytes() {
-        short length = HEADER_SIZE;
+    /**
+     *  Mark this frame as counted in the send buffer of a channel.
+     *
+     *  @param owner The channel that sent the frame.
+     *  @param size The number of bytes counted.
+     */
+    void setOwner(Channel owner, int size) {
+        mOwner = owner;
+        mBufferedSize = size;
+    }
 
-        if (mData != null) {
-            length += (short)(mData.length);
+    Channel getOwner() {
+        return mOwner;
+    }
+
+    /**
+     *  Mark the payload as taken from a pool, to return it to once the
+     *  frame is written or dropped.
+     *
+     *  @param pool The pool.
+     */
+    void setPool(BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     *  Return a pooled payload to its pool. The frame has no payload
+     *  afterwards.
+     */
+    void recycle() {
+        BufferPool pool = mPool;
+
+        if (pool == null) {
+            return;
+        }
+
+        mPool = null;
+        pool.release(mData);
+        mData = null;
+    }
+
+    int getBufferedSize() {
+        return mBufferedSize;
+    }
+
+    /**
+     *  Returns a frame with a read-only view of this frame's payload,
+     *  safe to hand to several receivers at once.
+     */
+    Frame asReadOnly() {
+        if (mSource != null) {
+            return detach().asReadOnly();
+        }
+
+        if (mData == null || mData.isReadOnly()) {
+            return this;
+        }
+        return new Frame(mPtr, mCtype, mOp, mFlag, mData.asReadOnlyBuffer());
+    }
+
+    /**
+     *  Returns a new view of the payload, or null if the frame has none.
+     */
+    ByteBuffer getData() {
+        if (mData == null) {
+            return null;
         }
+        return mData.duplicate();
+    }
 
+    /**
+     *  Returns the payload buffer itself. Writing the frame consumes it.
+     */
+    ByteBuffer getPayload() {
+        return mData;
+    }
+
+    /**
+     *  Write the length prefixed header of this frame.
+     *
+     *  @param buffer The buffer to write to.
+     *  @param length The payload length.
+     */
+    void encodeHeader(ByteBuffer buffer, int length) {
+        buffer.putShort((short)(HEADER_SIZE + length));
+        buffer.putInt(mPtr);
+        buffer.put((byte)((mCtype << CTYPE_BITPOS) | (mOp << OP_BITPOS) | mFlag));
+    }
+
+    ByteBuffer getBytes() {
+        int length = mData == null ? 0 : mData.remaining();
 
-        ByteBuffer bytes = ByteBuffer.allocate(length + 2);
+        ByteBuffer bytes = ByteBuffer.allocate(length + HEADER_SIZE + 2);
         bytes.order(ByteOrder.BIG_ENDIAN);
 
-        bytes.putShort(length);
-        bytes.putInt(mPtr);
-        bytes.put((byte)((mCtype << CTYPE_BITPOS) | (mOp << OP_BITPOS) | mFlag));
+        encodeHeader(bytes, length);
 
         if (mData != null) {
-            bytes.put(mData);
+            bytes.put(mData.duplicate());
         }
 
         bytes.flip();
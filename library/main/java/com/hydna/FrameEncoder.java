@@ -0,0 +1,185 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ *  Encodes outbound frames for a single writer thread.
+ *
+ *  Headers are written into slots of one pooled buffer and payloads are
+ *  referenced as they are, so that a batch of frames can be flushed with
+ *  one gathering write without copying or allocating per frame.
+ */
+class FrameEncoder {
+
+    static final int HEADER_LENGTH = Frame.HEADER_SIZE + 2;
+
+    private final Connection mConnection;
+    private final BufferPool mPool;
+    private final int mMaxBytes;
+
+    private ByteBuffer mSlab;
+    private final ByteBuffer[] mHeaders;
+    private final ByteBuffer[] mVector;
+    private final Frame[] mFrameRefs;
+    private final int[] mSizes;
+
+    private int mFrames = 0;
+    private int mCount = 0;
+    private int mOffset = 0;
+    private int mBytes = 0;
+
+    /**
+     *  Initializes a new FrameEncoder.
+     *
+     *  @param connection The connection to report written frames to, or
+     *                    null.
+     *  @param pool The pool to take the header buffer from.
+     *  @param maxFrames The max number of frames per batch.
+     *  @param maxBytes The max number of bytes per batch.
+     */
+    FrameEncoder(Connection connection,
+                 BufferPool pool,
+                 int maxFrames,
+                 int maxBytes) {
+        mConnection = connection;
+        mPool = pool;
+        mMaxBytes = maxBytes;
+
+        mSlab = pool.acquire();
+        maxFrames = Math.min(maxFrames, mSlab.capacity() / HEADER_LENGTH);
+
+        mHeaders = new ByteBuffer[maxFrames];
+        mVector = new ByteBuffer[maxFrames * 2];
+        mFrameRefs = new Frame[maxFrames];
+        mSizes = new int[maxFrames];
+
+        for (int i = 0; i < maxFrames; i++) {
+            mSlab.limit((i + 1) * HEADER_LENGTH);
+            mSlab.position(i * HEADER_LENGTH);
+            mHeaders[i] = mSlab.slice();
+        }
+    }
+
+    /**
+     *  Add a frame to the current batch.
+     *
+     *  @param frame The frame to encode.
+     *  @return False if the batch is full and should be written first.
+     */
+    boolean add(Frame frame) {
+        if (isFull()) {
+            return false;
+        }
+
+        ByteBuffer payload = frame.getPayload();
+        int length = payload == null ? 0 : payload.remaining();
+
+        mFrameRefs[mFrames] = frame;
+        mSizes[mFrames] = HEADER_LENGTH + length;
+
+        ByteBuffer header = mHeaders[mFrames++];
+
+        header.clear();
+        frame.encodeHeader(header, length);
+        header.flip();
+
+        mVector[mCount++] = header;
+        mBytes += HEADER_LENGTH;
+
+        if (length > 0) {
+            mVector[mCount++] = payload;
+            mBytes += length;
+        }
+
+        return true;
+    }
+
+    boolean isFull() {
+        return mFrames == mHeaders.length || mBytes >= mMaxBytes;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     *  Checks if there is data left to write in the current batch.
+     *
+     *  @return True if the batch is not fully written.
+     */
+    boolean hasRemaining() {
+        return mCount > 0 && mVector[mCount - 1].hasRemaining();
+    }
+
+    /**
+     *  Write as much as possible of the current batch. The batch is
+     *  reset once everything is written.
+     *
+     *  @param channel The channel to write to.
+     *  @return The number of bytes written.
+     */
+    long write(GatheringByteChannel channel) throws IOException {
+        long n = channel.write(mVector, mOffset, mCount - mOffset);
+
+        while (mOffset < mCount && mVector[mOffset].hasRemaining() == false) {
+            mOffset++;
+        }
+
+        if (mOffset == mCount) {
+            if (mConnection != null) {
+                for (int i = 0; i < mFrames; i++) {
+                    mConnection.frameWritten(mFrameRefs[i], mSizes[i]);
+                }
+            }
+            reset();
+        }
+
+        return n;
+    }
+
+    /**
+     *  Drop the current batch, after a failed write. The frames in it are
+     *  reported as dropped so that they no longer count as buffered.
+     */
+    void discard() {
+        if (mConnection != null) {
+            for (int i = 0; i < mFrames; i++) {
+                mConnection.frameDropped(mFrameRefs[i]);
+            }
+        }
+        reset();
+    }
+
+    /**
+     *  Drop the current batch.
+     */
+    void reset() {
+        for (int i = 0; i < mCount; i++) {
+            mVector[i] = null;
+        }
+
+        for (int i = 0; i < mFrames; i++) {
+            mFrameRefs[i] = null;
+        }
+
+        mFrames = 0;
+        mCount = 0;
+        mOffset = 0;
+        mBytes = 0;
+    }
+
+    /**
+     *  Return the header buffer to the pool. The encoder cannot be used
+     *  afterwards.
+     */
+    void dispose() {
+        reset();
+
+        if (mSlab != null) {
+            mPool.release(mSlab);
+            mSlab = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *  Incremental parser for inbound frames.
+ *
+ *  Data is read into one large buffer and every complete frame in it is
+ *  returned with a payload that is a view of that buffer, without
+ *  copying. The frame and the view are reused for the next frame, so a
+ *  frame that is kept must be detached, which copies the payload, or
+ *  retained, which slices it. A buffer is never written to again while
+ *  retained slices of it are held; when it fills up, the incomplete tail
+ *  is moved to another buffer from the pool instead. Otherwise it is
+ *  compacted and used again.
+ *
+ *  Buffers are taken from a pool. Retained slices hold a reference to
+ *  their buffer, which goes back to the pool once they are all released.
+ */
+class FrameParser {
+
+    static final int DEFAULT_BUFFER_SIZE = 0x40000;
+
+    private static final int LENGTH_SIZE = 2;
+    static final int MAX_FRAME_SIZE = 0xFFFF + LENGTH_SIZE;
+
+    private final BufferPool mPool;
+
+    private PooledBuffer mPooled;
+    private ByteBuffer mBuffer;
+    private ByteBuffer mView;
+
+    private final Frame mFrame = new Frame();
+
+    /**
+     *  Initializes a new parser.
+     *
+     *  @param pool The pool to take read buffers from. Its buffers must
+     *              fit at least one frame of max size.
+     */
+    FrameParser(BufferPool pool) {
+        if (pool.getBufferSize() < MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Buffers too small");
+        }
+
+        mPool = pool;
+        setBuffer(new PooledBuffer(pool));
+        mBuffer.flip();
+    }
+
+    /**
+     *  Read once from the channel.
+     *
+     *  @param channel The channel to read from.
+     *  @return The number of bytes read, or -1 at end of stream.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+
+        int position = mBuffer.position();
+        int n;
+
+        mBuffer.position(mBuffer.limit());
+        mBuffer.limit(mBuffer.capacity());
+
+        try {
+            n = channel.read(mBuffer);
+        } finally {
+            mBuffer.limit(mBuffer.position());
+            mBuffer.position(position);
+        }
+
+        return n;
+    }
+
+    /**
+     *  Add data that was read by someone else, such as the bytes that
+     *  followed the handshake response.
+     *
+     *  @param data The data, at most the size of one frame.
+     */
+    void add(ByteBuffer data) {
+        if (data.remaining() > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Too much data");
+        }
+
+        ensureSpace();
+
+        int position = mBuffer.position();
+
+        mBuffer.position(mBuffer.limit());
+        mBuffer.limit(mBuffer.capacity());
+        mBuffer.put(data);
+        mBuffer.limit(mBuffer.position());
+        mBuffer.position(position);
+    }
+
+    /**
+     *  Parse the next complete frame in the buffer.
+     *
+     *  @return The frame, valid until the next call unless detached, or
+     *          null if more data is needed.
+     */
+    Frame next() {
+        int available = mBuffer.remaining();
+
+        if (available < FrameEncoder.HEADER_LENGTH) {
+            return null;
+        }
+
+        int start = mBuffer.position();
+        int size = (int)mBuffer.getShort(start) & 0xFFFF;
+
+        if (size < Frame.HEADER_SIZE) {
+            throw new IllegalStateException("Bad frame size " + size);
+        }
+
+        if (available < size + LENGTH_SIZE) {
+            return null;
+        }
+
+        int ptr = mBuffer.getInt(start + LENGTH_SIZE);
+        byte of = mBuffer.get(start + LENGTH_SIZE + 4);
+        int end = start + LENGTH_SIZE + size;
+        ByteBuffer data = null;
+
+        if (size > Frame.HEADER_SIZE) {
+            data = mView;
+            data.limit(end);
+            data.position(start + FrameEncoder.HEADER_LENGTH);
+        }
+
+        mBuffer.position(end);
+        mFrame.reset(this, ptr, of, data);
+
+        return mFrame;
+    }
+
+    /**
+     *  Called when a payload is retained, so that the buffer is not
+     *  written to again until it is released.
+     *
+     *  @return The buffer, with a reference taken for the caller.
+     */
+    PooledBuffer retainBuffer() {
+        mPooled.retain();
+        return mPooled;
+    }
+
+    /**
+     *  Returns the buffer the current frame was parsed from.
+     */
+    PooledBuffer getBuffer() {
+        return mPooled;
+    }
+
+    private void setBuffer(PooledBuffer pooled) {
+        mPooled = pooled;
+        mBuffer = pooled.getBuffer();
+        mView = mBuffer.duplicate();
+    }
+
+    /**
+     *  Make sure there is room to read at least the rest of one frame.
+     *  Parsed data ahead of the read position may be referenced by kept
+     *  payloads, in which case the unparsed tail is moved to another
+     *  buffer.
+     */
+    private void ensureSpace() {
+        if (mBuffer.capacity() - mBuffer.position() >= MAX_FRAME_SIZE) {
+            return;
+        }
+
+        if (mPooled.isExclusive()) {
+            mBuffer.compact();
+            mBuffer.flip();
+            return;
+        }
+
+        PooledBuffer previous = mPooled;
+        PooledBuffer pooled = new PooledBuffer(mPool);
+
+        pooled.getBuffer().put(mBuffer);
+        pooled.getBuffer().flip();
+        setBuffer(pooled);
+
+        previous.release();
+    }
+}
@@ -0,0 +1,297 @@
+package com.hydna;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Outbound frame queue used by the Connection sender.
+ *
+ *  Frames are kept in one lane per priority. Control frames (RESOLVE,
+ *  OPEN, KEEPALIVE and emitted signals) always go first, then DATA
+ *  frames by priority where 0 is the most urgent and 7 the least.
+ *  A lower lane that has been passed over STARVATION_LIMIT times is
+ *  served once, so a steady stream of urgent data cannot stall it
+ *  forever.
+ *
+ *  END signals wait only for the DATA frames to their own path that were
+ *  queued before them, so that a channel is not closed before its data
+ *  is written. They then go out with the control frames, whatever else
+ *  is queued.
+ */
+class FrameQueue {
+
+    static final int STARVATION_LIMIT = 32;
+
+    private static final int CONTROL_LANE = 0;
+    private static final int LANES = 9;
+
+    private final LinkedList<Frame>[] mLanes;
+    private final int[] mSkipped;
+    private final LinkedList<PendingEnd> mEnds;
+
+    private int mSize = 0;
+    private int mHighWater = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    FrameQueue() {
+        mLanes = new LinkedList[LANES];
+        mSkipped = new int[LANES];
+        mEnds = new LinkedList<PendingEnd>();
+
+        for (int i = 0; i < LANES; i++) {
+            mLanes[i] = new LinkedList<Frame>();
+        }
+    }
+
+    synchronized void add(Frame frame) {
+        addLast(frame);
+        mSize++;
+        mHighWater = Math.max(mHighWater, mSize);
+        notifyAll();
+    }
+
+    synchronized void addAll(List<Frame> frames) {
+        for (Frame frame : frames) {
+            addLast(frame);
+        }
+        mSize += frames.size();
+        mHighWater = Math.max(mHighWater, mSize);
+        notifyAll();
+    }
+
+    /**
+     *  Retrieve the next frame, waiting until one is available.
+     *
+     *  @return The next frame to send.
+     */
+    synchronized Frame take() throws InterruptedException {
+        while (mSize == 0) {
+            wait();
+        }
+        return next();
+    }
+
+    /**
+     *  Retrieve the next frame, or null if the queue is empty.
+     *
+     *  @return The next frame to send or null.
+     */
+    synchronized Frame poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        return next();
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     *  Returns the largest number of frames the queue has held.
+     */
+    synchronized int highWater() {
+        return mHighWater;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < LANES; i++) {
+            mLanes[i].clear();
+            mSkipped[i] = 0;
+        }
+        mEnds.clear();
+        mSize = 0;
+    }
+
+    /**
+     *  Remove every frame, except null frames, which must still reach
+     *  the sender.
+     *
+     *  @return The removed frames.
+     */
+    synchronized List<Frame> drain() {
+        List<Frame> removed = new ArrayList<Frame>(mSize);
+
+        for (int i = 0; i < LANES; i++) {
+            Iterator<Frame> it = mLanes[i].iterator();
+
+            while (it.hasNext()) {
+                Frame frame = it.next();
+
+                if (frame.isNullFrame() == false) {
+                    it.remove();
+                    removed.add(frame);
+                }
+            }
+
+            mSkipped[i] = 0;
+        }
+
+        for (PendingEnd end : mEnds) {
+            removed.add(end.frame);
+        }
+
+        mEnds.clear();
+        mSize -= removed.size();
+
+        return removed;
+    }
+
+    /**
+     *  Remove the frames that only make sense on the session they were
+     *  queued for, before a reconnected session starts writing. Only
+     *  DATA and SIGNAL frames to reopened paths are kept.
+     *
+     *  @param ptrs The pointers of the paths that are reopened.
+     *  @return The removed frames.
+     */
+    synchronized List<Frame> discardSession(Set<Integer> ptrs) {
+        List<Frame> removed = new ArrayList<Frame>();
+
+        for (int i = 0; i < LANES; i++) {
+            Iterator<Frame> it = mLanes[i].iterator();
+
+            while (it.hasNext()) {
+                Frame frame = it.next();
+                int op = frame.getOp();
+
+                if ((op == Frame.DATA || op == Frame.SIGNAL) &&
+                    frame.isEndFrame() == false &&
+                    ptrs.contains(frame.getPtr())) {
+                    continue;
+                }
+
+                it.remove();
+                removed.add(frame);
+            }
+
+            mSkipped[i] = 0;
+        }
+
+        for (PendingEnd end : mEnds) {
+            removed.add(end.frame);
+        }
+
+        mEnds.clear();
+        mSize -= removed.size();
+
+        return removed;
+    }
+
+    private void addLast(Frame frame) {
+        if (frame.isEndFrame() == false) {
+            mLanes[laneOf(frame)].addLast(frame);
+            return;
+        }
+
+        int ptr = frame.getPtr();
+        int ahead = 0;
+
+        for (int i = CONTROL_LANE + 1; i < LANES; i++) {
+            for (Frame queued : mLanes[i]) {
+                if (queued.getPtr() == ptr) {
+                    ahead++;
+                }
+            }
+        }
+
+        mEnds.addLast(new PendingEnd(frame, ahead));
+    }
+
+    private Frame next() {
+        if (mLanes[CONTROL_LANE].isEmpty() && mEnds.isEmpty() == false) {
+            Iterator<PendingEnd> it = mEnds.iterator();
+
+            while (it.hasNext()) {
+                PendingEnd end = it.next();
+
+                if (end.ahead == 0) {
+                    it.remove();
+                    mSize--;
+                    return end.frame;
+                }
+            }
+        }
+
+        int lane = -1;
+
+        if (mLanes[CONTROL_LANE].isEmpty() == false) {
+            lane = CONTROL_LANE;
+        } else {
+            int starved = -1;
+
+            for (int i = CONTROL_LANE + 1; i < LANES; i++) {
+                LinkedList<Frame> frames = mLanes[i];
+
+                if (frames.isEmpty()) {
+                    continue;
+                }
+
+                if (lane == -1) {
+                    lane = i;
+                } else if (mSkipped[i] >= STARVATION_LIMIT &&
+                           (starved == -1 || mSkipped[i] > mSkipped[starved])) {
+                    starved = i;
+                }
+            }
+
+            if (starved != -1) {
+                lane = starved;
+            }
+
+            for (int i = CONTROL_LANE + 1; i < LANES; i++) {
+                if (i != lane && mLanes[i].isEmpty() == false) {
+                    mSkipped[i]++;
+                }
+            }
+
+            mSkipped[lane] = 0;
+        }
+
+        mSize--;
+
+        Frame frame = mLanes[lane].removeFirst();
+
+        if (lane != CONTROL_LANE && mEnds.isEmpty() == false) {
+            written(frame.getPtr());
+        }
+
+        return frame;
+    }
+
+    /**
+     *  Count a written DATA frame against the END signals to its path.
+     */
+    private void written(int ptr) {
+        for (PendingEnd end : mEnds) {
+            if (end.ahead > 0 && end.frame.getPtr() == ptr) {
+                end.ahead--;
+            }
+        }
+    }
+
+    private static int laneOf(Frame frame) {
+        if (frame.getOp() == Frame.DATA) {
+            return CONTROL_LANE + 1 + frame.getFlag();
+        }
+
+        return CONTROL_LANE;
+    }
+
+    /**
+     *  A queued END signal and the number of DATA frames to its path that
+     *  were queued before it and are not written yet.
+     */
+    private static final class PendingEnd {
+        final Frame frame;
+        int ahead;
+
+        PendingEnd(Frame frame, int ahead) {
+            this.frame = frame;
+            this.ahead = ahead;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *  The HTTP upgrade handshake of a connection.
+ *
+ *  The response is read into a buffer and parsed line by line as it
+ *  arrives, so the same code serves blocking and non-blocking sockets.
+ *  Nothing beyond the end of the headers is consumed; whatever the
+ *  server sent after them belongs to the frame parser.
+ */
+class Handshake {
+
+    // Max size of the response headers
+    static final int MAX_SIZE = 0x2000;
+
+    private final ByteBuffer mRequest;
+    private final ByteBuffer mResponse;
+
+    private boolean mGotStatus = false;
+    private boolean mDone = false;
+
+    /**
+     *  Initializes a new handshake.
+     *
+     *  @param host The host to put in the request.
+     */
+    Handshake(String host) {
+        String request = "GET / HTTP/1.1\r\n" +
+                         "Connection: upgrade\r\n" +
+                         "Upgrade: winksock/1\r\n" +
+                         "Host: " + host + "\r\n\r\n";
+
+        try {
+            mRequest = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        mResponse = ByteBuffer.allocate(MAX_SIZE);
+    }
+
+    /**
+     *  Returns the request. Its position tells how much is written.
+     */
+    ByteBuffer getRequest() {
+        return mRequest;
+    }
+
+    /**
+     *  Read once from the channel and parse what has arrived.
+     *
+     *  @param channel The channel to read from.
+     *  @return True once the response is complete and accepted.
+     */
+    boolean read(ReadableByteChannel channel)
+        throws ChannelException, IOException {
+
+        if (mResponse.hasRemaining() == false) {
+            // The headers do not fit
+            throw ChannelException.badHttpResponse();
+        }
+
+        if (channel.read(mResponse) < 0) {
+            throw ChannelException.badHttpResponse();
+        }
+
+        mResponse.flip();
+
+        String line;
+
+        while ((line = nextLine()) != null) {
+            if (line.length() == 0) {
+                if (mGotStatus == false) {
+                    throw ChannelException.badHttpResponse();
+                }
+
+                mDone = true;
+                return true;
+            }
+
+            handleLine(line);
+        }
+
+        mResponse.compact();
+
+        return false;
+    }
+
+    /**
+     *  Returns the data received after the headers, once the response
+     *  is complete.
+     */
+    ByteBuffer getLeftover() {
+        if (mDone == false) {
+            throw new IllegalStateException("Handshake not done");
+        }
+
+        return mResponse;
+    }
+
+    /**
+     *  Take the next complete line from the buffer.
+     *
+     *  @return The line without its line break, or null if no complete
+     *          line is buffered.
+     */
+    private String nextLine() {
+        int start = mResponse.position();
+        int limit = mResponse.limit();
+
+        for (int i = start; i < limit; i++) {
+            if (mResponse.get(i) != '\n') {
+                continue;
+            }
+
+            int end = i > start && mResponse.get(i - 1) == '\r' ? i - 1 : i;
+            char[] chars = new char[end - start];
+
+            for (int j = start; j < end; j++) {
+                chars[j - start] = (char)(mResponse.get(j) & 0xFF);
+            }
+
+            mResponse.position(i + 1);
+
+            return new String(chars);
+        }
+
+        return null;
+    }
+
+    private void handleLine(String line) throws ChannelException {
+        // First line is the response, all others are fields
+        if (mGotStatus == false) {
+            int code = 0;
+            int pos1, pos2;
+
+            // Take the response code from "HTTP/1.1 101
+            // Switching Protocols"
+            pos1 = line.indexOf(" ");
+            if (pos1 != -1) {
+                pos2 = line.indexOf(" ", pos1 + 1);
+
+                if (pos2 == -1) {
+                    pos2 = line.length();
+                }
+
+                try {
+                    code = Integer.parseInt(line.substring(pos1 + 1, pos2));
+                } catch (NumberFormatException e) {
+                    throw ChannelException.badHttpResponse();
+                }
+            }
+
+            if (code != 101) {
+                throw ChannelException.unexpectedResponseCode(code);
+            }
+
+            mGotStatus = true;
+            return;
+        }
+
+        line = line.toLowerCase();
+
+        if (line.startsWith("upgrade:")) {
+            String header = line.substring(8).trim();
+            if (header.equals("winksock/1") == false) {
+                throw new ChannelException("Bad protocol version: " + header);
+            }
+        }
+    }
+}
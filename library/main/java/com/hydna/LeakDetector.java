@@ -0,0 +1,110 @@
+package com.hydna;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Reports retained events that are garbage collected without being
+ *  released, along with where they were retained.
+ *
+ *  Meant for debug builds: each tracked event costs a stack trace.
+ *  Collected events are looked for whenever another one is tracked.
+ */
+class LeakDetector {
+
+    private static volatile boolean mEnabled = false;
+
+    private static final ReferenceQueue<Object> mQueue =
+        new ReferenceQueue<Object>();
+
+    private static final ConcurrentHashMap<Leak, Leak> mLive =
+        new ConcurrentHashMap<Leak, Leak>();
+
+    /**
+     *  The record of a tracked object, equal to the records of the same
+     *  object while it is reachable.
+     */
+    private static final class Leak extends WeakReference<Object> {
+        private final int mHash;
+        private final Throwable mTrace;
+
+        Leak(Object referent, ReferenceQueue<Object> queue, Throwable trace) {
+            super(referent, queue);
+            mHash = System.identityHashCode(referent);
+            mTrace = trace;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+
+            if (other instanceof Leak == false) {
+                return false;
+            }
+
+            Object referent = get();
+
+            return referent != null && referent == ((Leak)other).get();
+        }
+    }
+
+    private LeakDetector() {}
+
+    static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     *  Start tracking an object, if detection is enabled.
+     *
+     *  @param referent The object that must be released.
+     */
+    static void track(Object referent) {
+        if (mEnabled == false) {
+            return;
+        }
+
+        report();
+
+        Leak leak = new Leak(referent, mQueue, new Throwable("Retained at"));
+        mLive.put(leak, leak);
+    }
+
+    /**
+     *  Stop tracking an object, once it is released.
+     *
+     *  @param referent The object.
+     */
+    static void close(Object referent) {
+        if (mLive.isEmpty()) {
+            return;
+        }
+
+        Leak leak = mLive.remove(new Leak(referent, null, null));
+
+        if (leak != null) {
+            leak.clear();
+        }
+    }
+
+    private static void report() {
+        Reference<?> ref;
+
+        while ((ref = mQueue.poll()) != null) {
+            if (mLive.remove(ref) != null) {
+                System.err.println("WARNING: A retained ChannelEvent was " +
+                                   "garbage collected without being released");
+                ((Leak)ref).mTrace.printStackTrace();
+            }
+        }
+    }
+}
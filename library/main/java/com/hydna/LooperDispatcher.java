@@ -0,0 +1,42 @@
+package com.hydna;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ *  Delivers channel events on the thread of an Android Looper.
+ */
+public class LooperDispatcher extends Dispatcher {
+
+    private final Handler mHandler;
+
+    /**
+     *  Initializes a new LooperDispatcher for the Main Looper.
+     */
+    public LooperDispatcher() {
+        this(Looper.getMainLooper());
+    }
+
+    /**
+     *  Initializes a new LooperDispatcher.
+     *
+     *  @param looper The Looper to run callbacks on.
+     */
+    public LooperDispatcher(Looper looper) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                Event event = (Event)msg.obj;
+                deliver(event.channel, event.what, event.obj);
+            }
+        };
+    }
+
+    @Override
+    protected void post(Channel channel, int what, Object obj) {
+        Message message = mHandler.obtainMessage(what,
+                                                 new Event(channel, what, obj));
+        message.sendToTarget();
+    }
+}
@@ -0,0 +1,12 @@
+package com.hydna;
+
+/**
+ *  The opcodes of frames, by which connection statistics are counted.
+ */
+public class Opcode {
+    public static final int KEEPALIVE = 0x00;
+    public static final int OPEN = 0x01;
+    public static final int DATA = 0x02;
+    public static final int SIGNAL = 0x03;
+    public static final int RESOLVE = 0x04;
+}
@@ -0,0 +1,16 @@
+package com.hydna;
+
+/**
+ *  What Channel.send and Channel.emit do when the send buffer of the
+ *  channel or its connection is over its high watermark.
+ *
+ *  BLOCK waits for the low watermark. On the thread that writes the
+ *  connection, which runs onDrain and, in selector mode, the callbacks
+ *  of a DirectDispatcher, nothing would ever drain, so the send throws
+ *  a ChannelException there instead.
+ */
+public class OverflowPolicy {
+    public static final int THROW = 0x00;
+    public static final int BLOCK = 0x01;
+    public static final int DROP = 0x02;
+}
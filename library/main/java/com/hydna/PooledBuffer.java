@@ -0,0 +1,59 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  A buffer taken from a pool and shared by reference count.
+ *
+ *  The parser that reads into the buffer holds the first reference, and
+ *  every message kept as a slice of it holds another. The buffer goes
+ *  back to the pool once the last reference is released.
+ */
+class PooledBuffer {
+
+    private final BufferPool mPool;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool) {
+        mPool = pool;
+        mBuffer = pool.acquire();
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     *  Checks if the holder of the first reference is the only one.
+     */
+    boolean isExclusive() {
+        return mRefs.get() == 1;
+    }
+
+    void retain() {
+        int refs;
+
+        do {
+            refs = mRefs.get();
+
+            if (refs == 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (mRefs.compareAndSet(refs, refs + 1) == false);
+    }
+
+    void release() {
+        int refs = mRefs.decrementAndGet();
+
+        if (refs < 0) {
+            mRefs.incrementAndGet();
+            throw new IllegalStateException("Buffer already released");
+        }
+
+        if (refs == 0) {
+            mPool.release(mBuffer);
+        }
+    }
+}
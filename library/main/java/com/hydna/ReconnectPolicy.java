@@ -0,0 +1,92 @@
+package com.hydna;
+
+import java.util.Random;
+
+/**
+ *  How a connection that is lost after it was established is reopened.
+ *
+ *  Attempts are spaced with exponential backoff, and each delay is picked
+ *  at random between half of and the full backoff, so that clients that
+ *  lost the same server do not all come back at once.
+ *
+ *  @see Connection#setReconnectPolicy(ReconnectPolicy)
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private static final Random mRandom = new Random();
+
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final int mMaxAttempts;
+
+    /**
+     *  Initializes a new policy with default delays and no limit on the
+     *  number of attempts.
+     */
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, 0);
+    }
+
+    /**
+     *  Initializes a new policy.
+     *
+     *  @param initialDelay The backoff before the first attempt, in ms.
+     *  @param maxDelay The max backoff between attempts, in ms.
+     *  @param maxAttempts The number of attempts before the channels are
+     *                     closed with an error, or 0 for no limit.
+     */
+    public ReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts) {
+        if (initialDelay < 1 || maxDelay < initialDelay || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return mInitialDelay;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     *  Checks if another attempt should be made.
+     *
+     *  @param attempt The number of the attempt, starting at 1.
+     *  @return True if the attempt is allowed.
+     */
+    boolean allows(int attempt) {
+        return mMaxAttempts == 0 || attempt <= mMaxAttempts;
+    }
+
+    /**
+     *  Returns the delay before an attempt.
+     *
+     *  @param attempt The number of the attempt, starting at 1.
+     *  @return The delay in ms.
+     */
+    long getDelay(int attempt) {
+        long backoff = mInitialDelay;
+
+        for (int i = 1; i < attempt && backoff < mMaxDelay; i++) {
+            backoff <<= 1;
+        }
+
+        backoff = Math.min(backoff, mMaxDelay);
+
+        long half = backoff / 2;
+
+        return half + (long)(mRandom.nextDouble() * (backoff - half + 1));
+    }
+}
@@ -0,0 +1,43 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  A bounded, least recently used, map of channel paths to the pointers
+ *  the server resolved them to.
+ */
+class ResolveCache {
+
+    static final int DEFAULT_SIZE = 256;
+
+    private final LinkedHashMap<ByteBuffer, Integer> mEntries;
+
+    ResolveCache(final int size) {
+        mEntries = new LinkedHashMap<ByteBuffer, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Integer> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     *  Returns the cached pointer for a path, or 0 if there is none.
+     */
+    synchronized int get(ByteBuffer path) {
+        Integer ptr = mEntries.get(path);
+        return ptr == null ? 0 : ptr.intValue();
+    }
+
+    synchronized void put(ByteBuffer path, int ptr) {
+        mEntries.put(path, Integer.valueOf(ptr));
+    }
+
+    synchronized void remove(ByteBuffer path) {
+        mEntries.remove(path);
+    }
+}
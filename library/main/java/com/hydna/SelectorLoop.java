@@ -0,0 +1,146 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  A single I/O thread that serves any number of connections with
+ *  non-blocking reads and writes.
+ *
+ *  Registrations and write requests from other threads are queued and
+ *  picked up by the loop thread after waking up the selector, since
+ *  interest ops cannot safely be changed while a select is in progress.
+ */
+class SelectorLoop implements Runnable {
+
+    private final Selector mSelector;
+    private final Thread mThread;
+
+    private final ConcurrentLinkedQueue<Connection> mRegistrations;
+    private final ConcurrentLinkedQueue<Connection> mWriteRequests;
+
+    private volatile boolean mRetired = false;
+
+    SelectorLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mRegistrations = new ConcurrentLinkedQueue<Connection>();
+        mWriteRequests = new ConcurrentLinkedQueue<Connection>();
+
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     *  Start serving an established connection. Its socket channel must
+     *  already be in non-blocking mode.
+     *
+     *  @param connection The connection to register.
+     */
+    void register(Connection connection) {
+        mRegistrations.add(connection);
+        mSelector.wakeup();
+    }
+
+    /**
+     *  Ask the loop to flush the send queue of a connection.
+     *
+     *  @param connection The connection with frames to write.
+     */
+    void requestWrite(Connection connection) {
+        mWriteRequests.add(connection);
+        mSelector.wakeup();
+    }
+
+    /**
+     *  Checks if the current thread is the loop thread.
+     */
+    boolean isLoopThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     *  Let the loop thread exit once it no longer serves any connection.
+     */
+    void retire() {
+        mRetired = true;
+        mSelector.wakeup();
+    }
+
+    public void run() {
+        for (;;) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                continue;
+            }
+
+            Connection connection;
+
+            while ((connection = mRegistrations.poll()) != null) {
+                try {
+                    connection.registerWith(mSelector);
+                } catch (IOException e) {
+                    connection.handleIOError(e);
+                }
+            }
+
+            while ((connection = mWriteRequests.poll()) != null) {
+                SelectionKey key = connection.getSelectionKey();
+
+                if (connection.isDestroying()) {
+                    connection.disposeEncoder();
+                    continue;
+                }
+
+                // Writes wait until the socket is connected
+                if (key != null && key.isValid() &&
+                    (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                    key.interestOps(SelectionKey.OP_READ |
+                                    SelectionKey.OP_WRITE);
+                }
+            }
+
+            Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                connection = (Connection)key.attachment();
+
+                try {
+                    if (key.isConnectable()) {
+                        connection.handleConnect();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                } catch (CancelledKeyException e) {
+                } catch (IOException e) {
+                    connection.handleIOError(e);
+                } catch (RuntimeException e) {
+                    // Keep serving the other connections
+                    connection.handleFailure(e);
+                }
+            }
+
+            if (mRetired && mSelector.keys().isEmpty()) {
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                }
+                return;
+            }
+        }
+    }
+}
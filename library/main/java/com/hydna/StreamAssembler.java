@@ -0,0 +1,110 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Assembles the chunks of streamed messages into whole messages, for a
+ *  channel that does not take the chunks itself. Chunks of concurrent
+ *  streams are told apart by their stream id.
+ *
+ *  Memory is bounded: a stream that would take the bytes held by all
+ *  streams over the max size, or that starts while MAX_STREAMS others
+ *  are still open, is discarded and counted. So are the chunks of a
+ *  stream whose first chunk was not seen.
+ *
+ *  Only used from the thread that delivers the events of the channel.
+ */
+class StreamAssembler {
+
+    // Max number of streams assembled at once
+    static final int MAX_STREAMS = 16;
+
+    private final Map<Integer, ByteBuffer> mStreams =
+        new HashMap<Integer, ByteBuffer>();
+
+    private final StripedCounter mCounters;
+
+    private int mSize = 0;
+
+    StreamAssembler(StripedCounter counters) {
+        mCounters = counters;
+    }
+
+    /**
+     *  Add a chunk to its stream.
+     *
+     *  @param stream The stream id.
+     *  @param first True if this is the first chunk of the stream.
+     *  @param last True if this is the last chunk of the stream.
+     *  @param chunk The content of the chunk, which is copied.
+     *  @param max The max number of bytes held by all streams.
+     *  @return The whole message, flipped, once the last chunk is added,
+     *          otherwise null.
+     */
+    ByteBuffer add(int stream,
+                   boolean first,
+                   boolean last,
+                   ByteBuffer chunk,
+                   int max) {
+        Integer id = Integer.valueOf(stream);
+        ByteBuffer message;
+
+        if (first) {
+            // A stream id that is reused starts over
+            discard(id);
+
+            if (mStreams.size() >= MAX_STREAMS) {
+                mCounters.increment(ChannelStats.STREAMS_DISCARDED);
+                return null;
+            }
+
+            message = ByteBuffer.allocate(Math.min(chunk.remaining(), max));
+            mStreams.put(id, message);
+        } else if ((message = mStreams.get(id)) == null) {
+            return null;
+        }
+
+        int length = chunk.remaining();
+
+        if (mSize + length > max) {
+            discard(id);
+            mCounters.increment(ChannelStats.STREAMS_DISCARDED);
+            return null;
+        }
+
+        if (message.remaining() < length) {
+            // Grows by doubling, but never past what fits within max
+            int capacity = Math.max(message.capacity() * 2,
+                                    message.position() + length);
+            ByteBuffer grown = ByteBuffer.allocate(
+                Math.min(capacity, max - mSize + message.position()));
+
+            message.flip();
+            grown.put(message);
+            mStreams.put(id, message = grown);
+        }
+
+        message.put(chunk);
+        mSize += length;
+
+        if (last == false) {
+            return null;
+        }
+
+        mStreams.remove(id);
+        mSize -= message.position();
+        message.flip();
+
+        return message;
+    }
+
+    private void discard(Integer id) {
+        ByteBuffer message = mStreams.remove(id);
+
+        if (message != null) {
+            mSize -= message.position();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hydna;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A set of counters that many threads can add to without contending.
+ *
+ *  Each thread adds to one of several stripes, picked by its id, and the
+ *  stripes are only summed when a value is read. Stripes are padded to
+ *  separate cache lines. Reads are not atomic across counters, which is
+ *  fine for statistics.
+ */
+class StripedCounter {
+
+    private static final int MAX_STRIPES = 8;
+
+    // Longs per cache line
+    private static final int PAD = 8;
+
+    private static final int STRIPES;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+
+        while (stripes < cpus && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray mCells;
+    private final int mRow;
+
+    /**
+     *  Initializes a new set of counters.
+     *
+     *  @param counters The number of counters.
+     */
+    StripedCounter(int counters) {
+        mRow = (counters + PAD - 1) / PAD * PAD;
+        mCells = new AtomicLongArray(mRow * STRIPES);
+    }
+
+    void add(int counter, long value) {
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        mCells.addAndGet(stripe * mRow + counter, value);
+    }
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    long get(int counter) {
+        long sum = 0;
+
+        for (int i = counter; i < mCells.length(); i += mRow) {
+            sum += mCells.get(i);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,104 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *  A channel path opened on a connection, shared by every Channel
+ *  instance that opened the same path with the same mode and token.
+ *
+ *  The path is resolved and opened on the server once. Incoming frames
+ *  are fanned out to all channels, and the server side is only closed
+ *  when the last channel closes.
+ *
+ *  The connection is always locked before a subscription. Frames are
+ *  never posted while only the subscription is locked, since a channel
+ *  that closes on delivery then locks the connection.
+ */
+class Subscription {
+
+    final ByteBuffer path;
+    final int mode;
+    final byte[] token;
+
+    final CopyOnWriteArrayList<Channel> channels;
+
+    int ptr = 0;
+    boolean opening = false;
+    boolean closing = false;
+
+    // Claimed by a channel that has yet to queue its RESOLVE or OPEN
+    boolean pending = false;
+
+    // When the pending RESOLVE or OPEN was queued, for round-trip times
+    long requestedAt = 0;
+
+    // The server responses, replayed to channels that join later
+    Frame resolveFrame;
+    Frame openFrame;
+
+    Subscription(ByteBuffer path, int mode, byte[] token) {
+        this.path = path;
+        this.mode = mode;
+        this.token = token;
+        this.channels = new CopyOnWriteArrayList<Channel>();
+    }
+
+    /**
+     *  Checks if a channel opened with the mode and token can share this
+     *  subscription.
+     */
+    boolean matches(int mode, byte[] token) {
+        return closing == false &&
+               this.mode == mode &&
+               Arrays.equals(this.token, token);
+    }
+
+    boolean isShared() {
+        return channels.size() > 1;
+    }
+
+    /**
+     *  Returns the current channels. Taken with the subscription locked,
+     *  along with a response that is replayed to channels joining later,
+     *  so that every channel gets the response exactly once.
+     */
+    Channel[] getChannels() {
+        return channels.toArray(new Channel[channels.size()]);
+    }
+
+    /**
+     *  Post a frame to all channels. Payloads are shared read-only when
+     *  there is more than one channel.
+     *
+     *  @param op The opcode to post the frame as.
+     *  @param frame The frame.
+     */
+    void postFrame(int op, Frame frame) {
+        if (channels.size() > 1) {
+            frame = frame.asReadOnly();
+        }
+
+        for (Channel channel : channels) {
+            channel.postFrame(op, frame);
+        }
+    }
+
+    /**
+     *  Post a frame to the channels of a snapshot.
+     *
+     *  @param channels The channels, see getChannels.
+     *  @param op The opcode to post the frame as.
+     *  @param frame The frame.
+     */
+    static void postFrame(Channel[] channels, int op, Frame frame) {
+        if (channels.length > 1) {
+            frame = frame.asReadOnly();
+        }
+
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].postFrame(op, frame);
+        }
+    }
+}
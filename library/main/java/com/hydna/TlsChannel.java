@@ -0,0 +1,528 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ *  A TLS session on top of a socket channel.
+ *
+ *  Works the same on blocking and non-blocking sockets: on a blocking
+ *  socket every call completes, on a non-blocking socket a call does what
+ *  it can and the caller retries once the socket is ready again. Reads
+ *  and writes may run on different threads.
+ *
+ *  Encrypted data and decrypted data that did not fit the reader's
+ *  buffer are kept in buffers taken from pools shared by all sessions,
+ *  so reconnects do not allocate new ones.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    // Number of records that are encrypted before the socket is written,
+    // so a large batch is not sent one record per write.
+    static final int OUT_RECORDS = 4;
+
+    static final int MAX_POOLED = 16;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static ConcurrentHashMap<Integer, BufferPool> mPools =
+        new ConcurrentHashMap<Integer, BufferPool>();
+
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private final String mHost;
+    private final HostnameVerifier mVerifier;
+
+    private final Object mReadLock = new Object();
+    private final Object mWriteLock = new Object();
+
+    // All buffers are kept ready for reading, with their pending data
+    // between position and limit.
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+
+    private int mAppSize;
+
+    private boolean mUnderflow = true;
+    private boolean mHandshaking = true;
+    private boolean mEndOfStream = false;
+    private volatile boolean mClosed = false;
+
+    /**
+     *  Initializes a new session and starts the handshake.
+     *
+     *  @param channel The connected socket channel.
+     *  @param engine The engine, in client mode.
+     *  @param host The host to verify the peer against.
+     *  @param verifier The verifier to check the host name with after the
+     *                  handshake, or null if the engine does it.
+     */
+    TlsChannel(SocketChannel channel,
+               SSLEngine engine,
+               String host,
+               HostnameVerifier verifier) throws SSLException {
+        mChannel = channel;
+        mEngine = engine;
+        mHost = host;
+        mVerifier = verifier;
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+
+        mAppSize = engine.getSession().getApplicationBufferSize();
+        mNetIn = poolOf(packetSize).acquire();
+        mNetIn.flip();
+        mNetOut = poolOf(packetSize * OUT_RECORDS).acquire();
+        mNetOut.flip();
+
+        engine.beginHandshake();
+    }
+
+    private static BufferPool poolOf(int size) {
+        BufferPool pool = mPools.get(size);
+
+        if (pool == null) {
+            BufferPool existing;
+            pool = new BufferPool(size, MAX_POOLED, false);
+            if ((existing = mPools.putIfAbsent(size, pool)) != null) {
+                pool = existing;
+            }
+        }
+
+        return pool;
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            poolOf(buffer.capacity()).release(buffer);
+        }
+    }
+
+    /**
+     *  Continue the handshake.
+     *
+     *  @return True once the handshake is done and the peer verified.
+     */
+    boolean handshake() throws IOException {
+        synchronized (mReadLock) {
+            synchronized (mWriteLock) {
+                checkOpen();
+
+                while (mHandshaking) {
+                    if (flush() == false) {
+                        return false;
+                    }
+
+                    switch (mEngine.getHandshakeStatus()) {
+
+                        case NEED_TASK:
+                            runTasks();
+                            break;
+
+                        case NEED_WRAP:
+                            wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+                            break;
+
+                        case NEED_UNWRAP:
+                            if (unwrap(EMPTY) < 0) {
+                                throw new SSLException("Connection closed during handshake");
+                            }
+
+                            if ((mUnderflow || mNetIn.hasRemaining() == false) &&
+                                fill() == 0) {
+                                return false;
+                            }
+                            break;
+
+                        default:
+                            // The last message is flushed on the next
+                            // pass, or on the first write.
+                            mHandshaking = false;
+                            verify();
+                            break;
+                    }
+                }
+
+                return flush();
+            }
+        }
+    }
+
+    private void verify() throws SSLPeerUnverifiedException {
+        if (mVerifier != null &&
+            mVerifier.verify(mHost, mEngine.getSession()) == false) {
+            throw new SSLPeerUnverifiedException("The certificate does not match the host \"" +
+                                                 mHost + "\"");
+        }
+    }
+
+    boolean isHandshaking() {
+        return mHandshaking;
+    }
+
+    /**
+     *  Checks if data can be read without reading the socket.
+     */
+    boolean hasBufferedInput() {
+        synchronized (mReadLock) {
+            return (mAppIn != null && mAppIn.hasRemaining()) ||
+                   (mUnderflow == false && mNetIn != null && mNetIn.hasRemaining());
+        }
+    }
+
+    /**
+     *  Checks if encrypted data is waiting for the socket to be writable.
+     */
+    boolean hasPendingOutput() {
+        synchronized (mWriteLock) {
+            return mNetOut != null && mNetOut.hasRemaining();
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (mReadLock) {
+            checkOpen();
+
+            int n = drainAppIn(dst);
+
+            if (n > 0) {
+                return n;
+            }
+
+            for (;;) {
+                n = unwrap(dst);
+
+                if (n != 0 || dst.hasRemaining() == false) {
+                    return n;
+                }
+
+                if (mEndOfStream) {
+                    return -1;
+                }
+
+                if (fill() == 0) {
+                    return mEndOfStream ? -1 : 0;
+                }
+            }
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int)write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     *  Encrypt and write as much as possible. Data that is encrypted but
+     *  not yet written counts as written; it goes out with the next call
+     *  to write or flush.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        synchronized (mWriteLock) {
+            checkOpen();
+
+            if (flush() == false) {
+                return 0;
+            }
+
+            long consumed = 0;
+            long n;
+
+            do {
+                n = wrap(srcs, offset, length);
+                consumed += n;
+            } while (n > 0 && flush());
+
+            return consumed;
+        }
+    }
+
+    /**
+     *  Write encrypted data that is pending.
+     *
+     *  @return True if nothing is left pending.
+     */
+    boolean flush() throws IOException {
+        synchronized (mWriteLock) {
+            checkOpen();
+
+            while (mNetOut.hasRemaining()) {
+                if (mChannel.write(mNetOut) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    public boolean isOpen() {
+        return mClosed == false && mChannel.isOpen();
+    }
+
+    /**
+     *  Close the socket and give the buffers back to the pools. The
+     *  socket is closed first, so that blocked reads and writes give up
+     *  the buffers.
+     */
+    public void close() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            synchronized (mReadLock) {
+                synchronized (mWriteLock) {
+                    if (mClosed == false) {
+                        mClosed = true;
+
+                        release(mNetIn);
+                        release(mNetOut);
+                        release(mAppIn);
+                        mNetIn = null;
+                        mNetOut = null;
+                        mAppIn = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     *  Encrypt data into the pending output, for as long as there is
+     *  room for a full record.
+     *
+     *  @return The number of bytes consumed.
+     */
+    private long wrap(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        long consumed = 0;
+
+        mNetOut.compact();
+
+        try {
+            while (mNetOut.remaining() >= mEngine.getSession().getPacketBufferSize()) {
+                SSLEngineResult result = mEngine.wrap(srcs, offset, length, mNetOut);
+
+                consumed += result.bytesConsumed();
+
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("Session closed");
+                }
+
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+
+                if (result.bytesProduced() == 0 ||
+                    result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    break;
+                }
+            }
+        } finally {
+            mNetOut.flip();
+        }
+
+        if (consumed == 0 && mNetOut.hasRemaining() == false &&
+            mNetOut.capacity() < mEngine.getSession().getPacketBufferSize()) {
+            // The session asks for larger records than it did at first
+            ByteBuffer buffer = poolOf(mEngine.getSession().getPacketBufferSize() *
+                                       OUT_RECORDS).acquire();
+            buffer.flip();
+            release(mNetOut);
+            mNetOut = buffer;
+            return wrap(srcs, offset, length);
+        }
+
+        return consumed;
+    }
+
+    /**
+     *  Decrypt buffered records. Data goes straight into the destination
+     *  when a full record fits, and through the app buffer otherwise.
+     *
+     *  @return The number of bytes put in the destination, or -1 if the
+     *          peer closed the session.
+     */
+    private int unwrap(ByteBuffer dst) throws IOException {
+        int produced = 0;
+
+        while (mUnderflow == false && mNetIn.hasRemaining()) {
+            SSLEngineResult result;
+
+            if (dst.remaining() >= mAppSize) {
+                result = mEngine.unwrap(mNetIn, dst);
+                produced += result.bytesProduced();
+            } else {
+                if (mAppIn != null && mAppIn.hasRemaining()) {
+                    break;
+                }
+
+                if (mAppIn == null) {
+                    mAppIn = poolOf(mAppSize).acquire();
+                }
+
+                mAppIn.clear();
+
+                try {
+                    result = mEngine.unwrap(mNetIn, mAppIn);
+                } finally {
+                    mAppIn.flip();
+                }
+
+                produced += drainAppIn(dst);
+            }
+
+            switch (result.getStatus()) {
+
+                case BUFFER_UNDERFLOW:
+                    mUnderflow = true;
+                    growNetIn();
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    if (mAppSize >= mEngine.getSession().getApplicationBufferSize()) {
+                        return produced;
+                    }
+                    mAppSize = mEngine.getSession().getApplicationBufferSize();
+                    release(mAppIn);
+                    mAppIn = null;
+                    break;
+
+                case CLOSED:
+                    mEndOfStream = true;
+                    return produced > 0 ? produced : -1;
+
+                default:
+                    break;
+            }
+
+            switch (result.getHandshakeStatus()) {
+
+                case NEED_TASK:
+                    runTasks();
+                    break;
+
+                case NEED_WRAP:
+                    // The session wants to answer, after a renegotiation
+                    // or a key update.
+                    synchronized (mWriteLock) {
+                        wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+                        flush();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+
+            if (mHandshaking && dst == EMPTY) {
+                return produced;
+            }
+        }
+
+        return produced;
+    }
+
+    /**
+     *  Read from the socket.
+     *
+     *  @return The number of bytes read.
+     */
+    private int fill() throws IOException {
+        mNetIn.compact();
+
+        int n;
+
+        try {
+            n = mChannel.read(mNetIn);
+        } finally {
+            mNetIn.flip();
+        }
+
+        if (n < 0) {
+            mEndOfStream = true;
+
+            if (mHandshaking) {
+                throw new SSLException("Connection closed during handshake");
+            }
+
+            return 0;
+        }
+
+        if (n > 0) {
+            mUnderflow = false;
+        }
+
+        return n;
+    }
+
+    private void growNetIn() {
+        int size = mEngine.getSession().getPacketBufferSize();
+
+        if (mNetIn.capacity() >= size) {
+            return;
+        }
+
+        ByteBuffer buffer = poolOf(size).acquire();
+        buffer.put(mNetIn);
+        buffer.flip();
+        release(mNetIn);
+        mNetIn = buffer;
+    }
+
+    private int drainAppIn(ByteBuffer dst) {
+        if (mAppIn == null) {
+            return 0;
+        }
+
+        int n = Math.min(mAppIn.remaining(), dst.remaining());
+
+        if (n == mAppIn.remaining()) {
+            dst.put(mAppIn);
+        } else {
+            int limit = mAppIn.limit();
+            mAppIn.limit(mAppIn.position() + n);
+            dst.put(mAppIn);
+            mAppIn.limit(limit);
+        }
+
+        if (mAppIn.hasRemaining() == false) {
+            release(mAppIn);
+            mAppIn = null;
+        }
+
+        return n;
+    }
+
+    /**
+     *  Run the tasks of the handshake, such as checking certificates, on
+     *  the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  UTF-8 encoding of outbound text without intermediate arrays.
+ *
+ *  Unpaired surrogates are encoded as '?', like String.getBytes does.
+ */
+class Utf8 {
+
+    private Utf8() {}
+
+    /**
+     *  Returns the encoded length of the text.
+     *
+     *  @param text The text to measure.
+     *  @param max The max length of interest.
+     *  @return The length in bytes, or -1 if it is larger than max.
+     */
+    static int length(CharSequence text, int max) {
+        int length = text.length();
+
+        // Every char takes at least one byte
+        if (length > max) {
+            return -1;
+        }
+
+        int bytes = length;
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                continue;
+            }
+
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (isPair(text, i, length)) {
+                // Two chars, four bytes
+                bytes += 2;
+                i++;
+            } else if (isSurrogate(c) == false) {
+                bytes += 2;
+            }
+
+            if (bytes > max) {
+                return -1;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     *  Encode the text into a buffer, which must have room for its
+     *  encoded length.
+     *
+     *  @param text The text to encode.
+     *  @param buffer The buffer to write to, from its position.
+     */
+    static void encode(CharSequence text, ByteBuffer buffer) {
+        int length = text.length();
+        int i = 0;
+
+        // Write leading ASCII straight to the backing array
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            int end = Math.min(length, buffer.remaining());
+
+            while (i < end) {
+                char c = text.charAt(i);
+
+                if (c >= 0x80) {
+                    break;
+                }
+
+                array[offset + i++] = (byte)c;
+            }
+
+            buffer.position(buffer.position() + i);
+        }
+
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                buffer.put((byte)c);
+            } else if (c < 0x800) {
+                buffer.put((byte)(0xC0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            } else if (isPair(text, i, length)) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+
+                buffer.put((byte)(0xF0 | (cp >> 18)));
+                buffer.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (cp & 0x3F)));
+            } else if (isSurrogate(c)) {
+                buffer.put((byte)'?');
+            } else {
+                buffer.put((byte)(0xE0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static boolean isPair(CharSequence text, int index, int length) {
+        return Character.isHighSurrogate(text.charAt(index)) &&
+               index + 1 < length &&
+               Character.isLowSurrogate(text.charAt(index + 1));
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+}
@@ -0,0 +1,100 @@
+package com.hydna.tools;
+
+/**
+ *  A fixed-size histogram of latencies with about 3% precision.
+ *
+ *  Values below 64 are counted exactly. Larger values are bucketed by
+ *  their highest bit and the five bits below it, so recording is cheap
+ *  and memory stays constant however many samples there are.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR + (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+
+    private long mTotal = 0;
+    private long mMax = 0;
+
+    synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        mCounts[indexOf(value)]++;
+        mTotal++;
+        mMax = Math.max(mMax, value);
+    }
+
+    synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mTotal += other.mTotal;
+            mMax = Math.max(mMax, other.mMax);
+        }
+    }
+
+    synchronized long getCount() {
+        return mTotal;
+    }
+
+    synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     *  Returns the value at a percentile.
+     *
+     *  @param percentile The percentile, from 0 to 100.
+     *  @return The value, or 0 if there are no samples.
+     */
+    synchronized long getPercentile(double percentile) {
+        if (mTotal == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(percentile / 100 * mTotal);
+        long seen = 0;
+
+        rank = Math.max(1, Math.min(rank, mTotal));
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+
+            if (seen >= rank) {
+                return Math.min(valueOf(i), mMax);
+            }
+        }
+
+        return mMax;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int)value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+
+        return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /**
+     *  Returns the middle of the range counted by a bucket.
+     */
+    private static long valueOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long base = (long)(index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+
+        return base + (1L << shift) / 2;
+    }
+}
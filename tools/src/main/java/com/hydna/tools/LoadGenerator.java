@@ -0,0 +1,515 @@
+package com.hydna.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+
+import com.hydna.Channel;
+import com.hydna.ChannelCloseEvent;
+import com.hydna.ChannelEvent;
+import com.hydna.ChannelException;
+import com.hydna.ChannelMode;
+import com.hydna.Connection;
+import com.hydna.DirectDispatcher;
+import com.hydna.Dispatcher;
+import com.hydna.ExecutorDispatcher;
+
+/**
+ *  A command-line load generator for winksock endpoints.
+ *
+ *  Opens a number of channels spread over a number of connections and
+ *  publishes messages at a fixed total rate. Every message carries the
+ *  time it was due to be sent, so once the server echoes or broadcasts
+ *  it back the end-to-end latency is known. Timing from the due time,
+ *  rather than from the actual send, keeps the tool from hiding the
+ *  delays of a client that falls behind.
+ *
+ *  With --keystore, https servers are trusted by that store, and a local
+ *  server speaks TLS with its key. --handshakes opens and closes one
+ *  connection that many times before the run, and reports how long the
+ *  first, full, TLS handshake took compared with the resumed ones.
+ *
+ *  Usage: LoadGenerator [--url=URL | --local] [--channels=N]
+ *         [--connections=M] [--rate=MSGS] [--size=BYTES]
+ *         [--duration=SECS] [--warmup=SECS] [--publishers=N]
+ *         [--selector-threads=N] [--executor=THREADS]
+ *         [--keystore=FILE --storepass=PASSWORD] [--handshakes=N]
+ */
+public class LoadGenerator {
+
+    static final int TIMESTAMP_SIZE = 8;
+
+    // Sleeping is only accurate to about this much
+    static final long PARK_THRESHOLD = 100000;
+
+    private String mUrl = null;
+    private boolean mLocal = false;
+    private int mChannels = 10;
+    private int mConnections = 1;
+    private int mRate = 10000;
+    private int mSize = 64;
+    private int mDuration = 10;
+    private int mWarmup = 2;
+    private int mPublishers = 1;
+    private int mSelectorThreads = 0;
+    private int mExecutorThreads = 0;
+    private String mKeyStore = null;
+    private String mStorePass = "";
+    private int mHandshakes = 0;
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final List<LoadChannel> mOpen = new ArrayList<LoadChannel>();
+
+    private volatile long mMeasureFrom;
+
+    /**
+     *  A channel that times the messages it receives.
+     */
+    private class LoadChannel extends Channel {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch connected;
+
+        LoadChannel(Dispatcher dispatcher, CountDownLatch connected) {
+            super(dispatcher);
+            this.connected = connected;
+        }
+
+        @Override
+        public void onConnect(ChannelEvent event) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onMessage(ChannelEvent event) {
+            long now = System.nanoTime();
+            ByteBuffer data = event.getData();
+
+            if (data == null || data.remaining() < TIMESTAMP_SIZE) {
+                return;
+            }
+
+            long due = data.getLong(data.position());
+
+            received.incrementAndGet();
+
+            if (due >= mMeasureFrom) {
+                histogram.record((now - due) / 1000);
+            }
+        }
+
+        @Override
+        public void onClose(ChannelCloseEvent event) {
+            if (event.wasClean() == false) {
+                System.err.println(getPath() + " closed: " + event.getReason());
+            }
+        }
+    }
+
+    /**
+     *  Measures how late a thread that sleeps 1 ms wakes up, which shows
+     *  GC pauses and other stalls of the whole process.
+     */
+    private static class StallMonitor extends Thread {
+
+        volatile boolean stopped = false;
+        volatile long maxStall = 0;
+
+        StallMonitor() {
+            super("hydna-stall-monitor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (stopped == false) {
+                long start = System.nanoTime();
+
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long stall = System.nanoTime() - start - 1000000;
+
+                if (stall > maxStall) {
+                    maxStall = stall;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [--url=URL | --local] " +
+                               "[--channels=N] [--connections=M] " +
+                               "[--rate=MSGS] [--size=BYTES] " +
+                               "[--duration=SECS] [--warmup=SECS] " +
+                               "[--publishers=N] [--selector-threads=N] " +
+                               "[--executor=THREADS] " +
+                               "[--keystore=FILE --storepass=PASSWORD] " +
+                               "[--handshakes=N]");
+            System.exit(1);
+        }
+
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--local")) {
+                mLocal = true;
+                continue;
+            }
+
+            int eq = arg.indexOf('=');
+
+            if (arg.startsWith("--") == false || eq == -1) {
+                throw new IllegalArgumentException("Bad argument: " + arg);
+            }
+
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            if (key.equals("url")) {
+                mUrl = value;
+            } else if (key.equals("channels")) {
+                mChannels = positive(key, value);
+            } else if (key.equals("connections")) {
+                mConnections = positive(key, value);
+            } else if (key.equals("rate")) {
+                mRate = positive(key, value);
+            } else if (key.equals("size")) {
+                mSize = Math.max(TIMESTAMP_SIZE, positive(key, value));
+            } else if (key.equals("duration")) {
+                mDuration = positive(key, value);
+            } else if (key.equals("warmup")) {
+                mWarmup = Integer.parseInt(value);
+            } else if (key.equals("publishers")) {
+                mPublishers = positive(key, value);
+            } else if (key.equals("selector-threads")) {
+                mSelectorThreads = Integer.parseInt(value);
+            } else if (key.equals("executor")) {
+                mExecutorThreads = Integer.parseInt(value);
+            } else if (key.equals("keystore")) {
+                mKeyStore = value;
+            } else if (key.equals("storepass")) {
+                mStorePass = value;
+            } else if (key.equals("handshakes")) {
+                mHandshakes = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+
+        if (mUrl == null && mLocal == false) {
+            throw new IllegalArgumentException("Either --url or --local is required");
+        }
+    }
+
+    private static int positive(String key, String value) {
+        int n = Integer.parseInt(value);
+
+        if (n < 1) {
+            throw new IllegalArgumentException(key + " must be positive");
+        }
+
+        return n;
+    }
+
+    private void run() throws Exception {
+        LocalServer server = null;
+        SSLContext context = null;
+
+        if (mKeyStore != null) {
+            context = LocalServer.createContext(mKeyStore, mStorePass);
+            Connection.setSSLContext(context);
+        }
+
+        if (mLocal) {
+            InetSocketAddress address =
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            server = new LocalServer(address, LocalServer.ECHO, context).start();
+            mUrl = (context == null ? "http" : "https") +
+                   "://127.0.0.1:" + server.getPort();
+        }
+
+        if (mSelectorThreads > 0) {
+            Connection.setSelectorThreads(mSelectorThreads);
+        }
+
+        Connection.setMaxPathsPerConnection((mChannels + mConnections - 1) /
+                                            mConnections);
+
+        ExecutorService executor = null;
+        Dispatcher direct = new DirectDispatcher();
+
+        if (mExecutorThreads > 0) {
+            executor = Executors.newFixedThreadPool(mExecutorThreads);
+        }
+
+        CountDownLatch connected = new CountDownLatch(mChannels);
+        String base = mUrl.endsWith("/") ? mUrl : mUrl + "/";
+
+        if (mHandshakes > 0) {
+            measureHandshakes(base, direct);
+        }
+
+        mMeasureFrom = Long.MAX_VALUE;
+
+        for (int i = 0; i < mChannels; i++) {
+            Dispatcher dispatcher = executor == null
+                ? direct
+                : new ExecutorDispatcher(executor);
+            LoadChannel channel = new LoadChannel(dispatcher, connected);
+
+            channel.connect(new URL(base + "load/" + i), ChannelMode.READWRITE);
+            mOpen.add(channel);
+        }
+
+        if (connected.await(30, TimeUnit.SECONDS) == false) {
+            System.err.println("Timed out opening channels, " +
+                               connected.getCount() + " left");
+            return;
+        }
+
+        System.out.println("channels " + mChannels +
+                           ", connections " + mConnections +
+                           ", payload " + mSize + " bytes" +
+                           ", target " + mRate + " msg/s");
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(mWarmup + mDuration);
+
+        mMeasureFrom = start + TimeUnit.SECONDS.toNanos(mWarmup);
+
+        List<Thread> publishers = new ArrayList<Thread>();
+
+        for (int i = 0; i < mPublishers; i++) {
+            Thread publisher = createPublisher(i, start, end);
+            publishers.add(publisher);
+            publisher.start();
+        }
+
+        // GC and stall figures are taken over the measured part only
+        long sleep = mMeasureFrom - System.nanoTime();
+        if (sleep > 0) {
+            TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+
+        long sentBefore = mSent.get();
+        long receivedBefore = received();
+        long[] gcBefore = gcTotals();
+        StallMonitor monitor = new StallMonitor();
+        monitor.start();
+
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        long measured = System.nanoTime() - mMeasureFrom;
+        long sent = mSent.get() - sentBefore;
+
+        // Give the last messages time to come back
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received() < mSent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        long received = received() - receivedBefore;
+        long[] gcAfter = gcTotals();
+        monitor.stopped = true;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        for (LoadChannel channel : mOpen) {
+            latency.add(channel.histogram);
+            channel.close();
+        }
+
+        double seconds = measured / 1e9;
+
+        System.out.println("sent        " + sent +
+                           " (" + Math.round(sent / seconds) + " msg/s)");
+        System.out.println("received    " + received +
+                           " (" + Math.round(received / seconds) + " msg/s, " +
+                           String.format("%.1f", received * mSize / seconds / 1e6) +
+                           " MB/s)");
+        System.out.println("errors      " + mErrors.get());
+        System.out.println("latency us  p50 " + latency.getPercentile(50) +
+                           "  p99 " + latency.getPercentile(99) +
+                           "  p99.9 " + latency.getPercentile(99.9) +
+                           "  max " + latency.getMax() +
+                           "  (" + latency.getCount() + " samples)");
+        System.out.println("gc          " + (gcAfter[0] - gcBefore[0]) +
+                           " collections, " + (gcAfter[1] - gcBefore[1]) +
+                           " ms");
+        System.out.println("max stall   " + monitor.maxStall / 1000000 + " ms");
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     *  Create a thread that publishes its share of the rate to its share
+     *  of the channels, until the end time.
+     */
+    private Thread createPublisher(final int index,
+                                   final long start,
+                                   final long end) {
+        final List<LoadChannel> channels = new ArrayList<LoadChannel>();
+
+        for (int i = index; i < mOpen.size(); i += mPublishers) {
+            channels.add(mOpen.get(i));
+        }
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) * mPublishers / mRate;
+
+        return new Thread("hydna-publisher-" + index) {
+            @Override
+            public void run() {
+                if (channels.isEmpty()) {
+                    return;
+                }
+
+                long due = start + interval * index / mPublishers;
+                int next = 0;
+
+                while (due < end) {
+                    long wait = due - System.nanoTime();
+
+                    if (wait > PARK_THRESHOLD) {
+                        LockSupport.parkNanos(wait - PARK_THRESHOLD / 2);
+                        continue;
+                    }
+
+                    while (System.nanoTime() < due) {
+                        // Spin for the last bit
+                    }
+
+                    ByteBuffer payload = ByteBuffer.allocate(mSize);
+                    payload.putLong(0, due);
+
+                    try {
+                        channels.get(next).send(payload);
+                        mSent.incrementAndGet();
+                    } catch (ChannelException e) {
+                        mErrors.incrementAndGet();
+                    }
+
+                    next = (next + 1) % channels.size();
+                    due += interval;
+                }
+            }
+        };
+    }
+
+    /**
+     *  Open a channel on a connection of its own, and close it again, a
+     *  number of times, timing each open. Every open after the first can
+     *  resume the TLS session of the one before.
+     */
+    private void measureHandshakes(String base, Dispatcher dispatcher)
+        throws Exception {
+        LatencyHistogram resumed = new LatencyHistogram();
+        long first = 0;
+
+        for (int i = 0; i < mHandshakes; i++) {
+            final CountDownLatch connected = new CountDownLatch(1);
+            final CountDownLatch closed = new CountDownLatch(1);
+
+            Channel channel = new Channel(dispatcher) {
+                @Override
+                public void onConnect(ChannelEvent event) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onClose(ChannelCloseEvent event) {
+                    if (event.wasClean() == false) {
+                        System.err.println("handshake closed: " + event.getReason());
+                    }
+                    connected.countDown();
+                    closed.countDown();
+                }
+            };
+
+            long start = System.nanoTime();
+
+            channel.connect(new URL(base + "handshake"), ChannelMode.READ);
+            connected.await(10, TimeUnit.SECONDS);
+
+            if (channel.isConnected() == false) {
+                System.err.println("Could not open a channel, skipping handshakes");
+                return;
+            }
+
+            long time = (System.nanoTime() - start) / 1000;
+
+            if (i == 0) {
+                first = time;
+            } else {
+                resumed.record(time);
+            }
+
+            channel.close();
+            closed.await(10, TimeUnit.SECONDS);
+        }
+
+        System.out.println("open us     first " + first +
+                           "  then p50 " + resumed.getPercentile(50) +
+                           "  p99 " + resumed.getPercentile(99) +
+                           "  (" + resumed.getCount() + " samples)");
+    }
+
+    private long received() {
+        long sum = 0;
+
+        for (LoadChannel channel : mOpen) {
+            sum += channel.received.get();
+        }
+
+        return sum;
+    }
+
+    /**
+     *  Returns the total number of collections and the total time spent
+     *  in them, in ms, over all collectors.
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+
+        return totals;
+    }
+}
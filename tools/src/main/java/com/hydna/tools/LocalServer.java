@@ -0,0 +1,531 @@
+package com.hydna.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ *  A small winksock/1 server for testing the library offline.
+ *
+ *  It accepts the HTTP upgrade handshake and answers RESOLVE, OPEN,
+ *  DATA, SIGNAL and KEEPALIVE frames the way a Hydna server does, so
+ *  that end-to-end throughput and latency can be measured on localhost.
+ *  Paths are resolved to pointers that stay the same for the lifetime
+ *  of the server.
+ *
+ *  Depending on the mode, messages and emitted signals are echoed back
+ *  to the sender only, broadcast to every connection that has the path
+ *  open, or every open is denied.
+ *
+ *  Given an SSL context, the server speaks TLS, and stands in for https
+ *  endpoints. createContext makes one from a key store, such as one with
+ *  a self-signed certificate made by keytool.
+ */
+public class LocalServer implements Runnable {
+
+    public static final int ECHO = 0x00;
+    public static final int BROADCAST = 0x01;
+    public static final int DENY = 0x02;
+
+    static final int HEADER_SIZE = 0x05;
+
+    static final int KEEPALIVE = 0x00;
+    static final int OPEN = 0x01;
+    static final int DATA = 0x02;
+    static final int SIGNAL = 0x03;
+    static final int RESOLVE = 0x04;
+
+    static final int OPEN_ALLOW = 0x0;
+    static final int OPEN_DENY = 0x7;
+
+    static final int SIG_EMIT = 0x0;
+    static final int SIG_END = 0x1;
+
+    private final ServerSocket mServer;
+    private final Thread mThread;
+    private volatile int mMode;
+    private volatile String mDenyMessage = "Denied by server";
+
+    private final Map<String, Integer> mPointers;
+    private final AtomicInteger mNextPointer;
+
+    // The sessions that have each pointer open
+    private final Map<Integer, Set<Session>> mRoutes;
+    private final Set<Session> mSessions;
+
+    private volatile boolean mStopped = false;
+
+    /**
+     *  Initializes a new server listening on the loopback interface.
+     *
+     *  @param port The port to listen on, or 0 for any free port.
+     *  @param mode ECHO, BROADCAST or DENY.
+     */
+    public LocalServer(int port, int mode) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port),
+             mode);
+    }
+
+    /**
+     *  Initializes a new server.
+     *
+     *  @param address The address to listen on.
+     *  @param mode ECHO, BROADCAST or DENY.
+     */
+    public LocalServer(InetSocketAddress address, int mode) throws IOException {
+        this(address, mode, null);
+    }
+
+    /**
+     *  Initializes a new server.
+     *
+     *  @param address The address to listen on.
+     *  @param mode ECHO, BROADCAST or DENY.
+     *  @param context The context to accept TLS connections with, or null
+     *                 for plain connections.
+     */
+    public LocalServer(InetSocketAddress address, int mode, SSLContext context)
+        throws IOException {
+        setMode(mode);
+
+        mPointers = new ConcurrentHashMap<String, Integer>();
+        mNextPointer = new AtomicInteger();
+        mRoutes = new ConcurrentHashMap<Integer, Set<Session>>();
+        mSessions = new CopyOnWriteArraySet<Session>();
+
+        mServer = context == null
+            ? new ServerSocket()
+            : context.getServerSocketFactory().createServerSocket();
+        mServer.setReuseAddress(true);
+        mServer.bind(address);
+
+        mThread = new Thread(this, "hydna-local-server");
+        mThread.setDaemon(true);
+    }
+
+    /**
+     *  Create an SSL context that uses the keys of a key store, and also
+     *  trusts its certificates. The same context then serves the server
+     *  and clients that are to trust it.
+     *
+     *  @param path The path of the key store, in the default format.
+     *  @param password The password of the store and its keys.
+     *  @return The context.
+     */
+    public static SSLContext createContext(String path, String password)
+        throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        FileInputStream in = new FileInputStream(path);
+
+        try {
+            store.load(in, password.toCharArray());
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keys =
+            KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password.toCharArray());
+
+        TrustManagerFactory trust =
+            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+        return context;
+    }
+
+    /**
+     *  Start accepting connections.
+     *
+     *  @return The server.
+     */
+    public LocalServer start() {
+        mThread.start();
+        return this;
+    }
+
+    /**
+     *  Stop the server and close all connections.
+     */
+    public void stop() {
+        mStopped = true;
+
+        try {
+            mServer.close();
+        } catch (IOException e) {
+        }
+
+        for (Session session : mSessions) {
+            session.close();
+        }
+    }
+
+    /**
+     *  Returns the port the server listens on.
+     */
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     *  Change how the server handles new frames.
+     *
+     *  @param mode ECHO, BROADCAST or DENY.
+     */
+    public void setMode(int mode) {
+        if (mode < ECHO || mode > DENY) {
+            throw new IllegalArgumentException("Invalid mode");
+        }
+
+        mMode = mode;
+    }
+
+    /**
+     *  Set the message sent with denied opens.
+     *
+     *  @param message The message.
+     */
+    public void setDenyMessage(String message) {
+        mDenyMessage = message;
+    }
+
+    /**
+     *  Drop all connections, without a clean close, as if the network
+     *  went away. The server keeps accepting new connections.
+     */
+    public void dropConnections() {
+        for (Session session : mSessions) {
+            session.close();
+        }
+    }
+
+    /**
+     *  Returns the number of open connections.
+     */
+    public int getConnectionCount() {
+        return mSessions.size();
+    }
+
+    public void run() {
+        while (mStopped == false) {
+            Socket socket;
+
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (SocketException e) {
+            }
+
+            Session session = new Session(socket);
+            mSessions.add(session);
+
+            Thread thread = new Thread(session, "hydna-local-session");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     *  Returns the pointer of a path, and assigns one if needed.
+     */
+    private int resolve(String path) {
+        Integer ptr = mPointers.get(path);
+
+        if (ptr == null) {
+            synchronized (mPointers) {
+                if ((ptr = mPointers.get(path)) == null) {
+                    ptr = mNextPointer.incrementAndGet();
+                    mPointers.put(path, ptr);
+                }
+            }
+        }
+
+        return ptr;
+    }
+
+    private Set<Session> routeOf(int ptr) {
+        Set<Session> sessions = mRoutes.get(ptr);
+
+        if (sessions == null) {
+            synchronized (mRoutes) {
+                if ((sessions = mRoutes.get(ptr)) == null) {
+                    sessions = new CopyOnWriteArraySet<Session>();
+                    mRoutes.put(ptr, sessions);
+                }
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     *  One client connection, served on its own thread.
+     */
+    private class Session implements Runnable {
+
+        private final Socket mSocket;
+        private final Set<Integer> mOpen;
+
+        private DataInputStream mIn;
+        private DataOutputStream mOut;
+
+        Session(Socket socket) {
+            mSocket = socket;
+            mOpen = new CopyOnWriteArraySet<Integer>();
+        }
+
+        public void run() {
+            try {
+                mIn = new DataInputStream(
+                    new BufferedInputStream(mSocket.getInputStream()));
+                mOut = new DataOutputStream(
+                    new BufferedOutputStream(mSocket.getOutputStream()));
+
+                if (handshake()) {
+                    serve();
+                }
+            } catch (IOException e) {
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            mSessions.remove(this);
+
+            for (Integer ptr : mOpen) {
+                routeOf(ptr).remove(this);
+            }
+
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+
+        /**
+         *  Read the request headers and answer the upgrade.
+         *
+         *  @return False if the request was not a winksock upgrade.
+         */
+        private boolean handshake() throws IOException {
+            boolean upgrade = false;
+            String line;
+
+            while ((line = readLine(mIn)).length() > 0) {
+                String lower = line.toLowerCase();
+
+                if (lower.startsWith("upgrade:") &&
+                    lower.substring(8).trim().equals("winksock/1")) {
+                    upgrade = true;
+                }
+            }
+
+            String response;
+
+            if (upgrade) {
+                response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                           "Connection: upgrade\r\n" +
+                           "Upgrade: winksock/1\r\n\r\n";
+            } else {
+                response = "HTTP/1.1 400 Bad Request\r\n" +
+                           "Connection: close\r\n\r\n";
+            }
+
+            synchronized (mOut) {
+                mOut.write(response.getBytes("US-ASCII"));
+                mOut.flush();
+            }
+
+            return upgrade;
+        }
+
+        private void serve() throws IOException {
+            for (;;) {
+                int size = mIn.readUnsignedShort();
+
+                if (size < HEADER_SIZE) {
+                    return;
+                }
+
+                int ptr = mIn.readInt();
+                int of = mIn.readUnsignedByte();
+                byte[] data = new byte[size - HEADER_SIZE];
+
+                mIn.readFully(data);
+
+                // The top bit marks stream chunks, and is passed on
+                int ctype = of >> 6 & 3;
+                int op = of >> 3 & 7;
+                int flag = of & 7;
+
+                switch (op) {
+
+                    case KEEPALIVE:
+                        send(0, 0, KEEPALIVE, 0, data);
+                        break;
+
+                    case RESOLVE:
+                        send(resolve(new String(data, "UTF-8")),
+                             0, RESOLVE, OPEN_ALLOW, data);
+                        break;
+
+                    case OPEN:
+                        if (mMode == DENY) {
+                            send(ptr, 0, OPEN, OPEN_DENY,
+                                 mDenyMessage.getBytes("UTF-8"));
+                        } else {
+                            mOpen.add(ptr);
+                            routeOf(ptr).add(this);
+                            send(ptr, 0, OPEN, OPEN_ALLOW, new byte[0]);
+                        }
+                        break;
+
+                    case DATA:
+                        route(ptr, ctype, DATA, flag, data);
+                        break;
+
+                    case SIGNAL:
+                        if (flag == SIG_EMIT) {
+                            route(ptr, ctype, SIGNAL, flag, data);
+                        } else if (mOpen.remove(ptr)) {
+                            // Acknowledge the close
+                            routeOf(ptr).remove(this);
+                            send(ptr, 0, SIGNAL, SIG_END, new byte[0]);
+                        }
+                        break;
+                }
+
+                if (mIn.available() == 0) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         *  Deliver a message or signal according to the mode.
+         */
+        private void route(int ptr, int ctype, int op, int flag, byte[] data)
+            throws IOException {
+            if (mOpen.contains(ptr) == false) {
+                return;
+            }
+
+            if (mMode != BROADCAST) {
+                send(ptr, ctype, op, flag, data);
+                return;
+            }
+
+            for (Session session : routeOf(ptr)) {
+                try {
+                    session.send(ptr, ctype, op, flag, data);
+
+                    if (session != this) {
+                        session.flush();
+                    }
+                } catch (IOException e) {
+                    if (session == this) {
+                        throw e;
+                    }
+                    session.close();
+                }
+            }
+        }
+
+        void send(int ptr, int ctype, int op, int flag, byte[] data)
+            throws IOException {
+            synchronized (mOut) {
+                mOut.writeShort(data.length + HEADER_SIZE);
+                mOut.writeInt(ptr);
+                mOut.writeByte(ctype << 6 | op << 3 | flag);
+                mOut.write(data);
+            }
+        }
+
+        void flush() throws IOException {
+            synchronized (mOut) {
+                mOut.flush();
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+
+            if (c != '\r') {
+                line.append((char)c);
+            }
+        }
+
+        return line.toString();
+    }
+
+    /**
+     *  Run a server from the command line.
+     *
+     *  Usage: LocalServer [port] [echo|broadcast|deny] [keystore password]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7010;
+        int mode = ECHO;
+        SSLContext context = null;
+
+        if (args.length > 1) {
+            if (args[1].equals("broadcast")) {
+                mode = BROADCAST;
+            } else if (args[1].equals("deny")) {
+                mode = DENY;
+            } else if (args[1].equals("echo") == false) {
+                System.err.println("Usage: LocalServer [port] [echo|broadcast|deny] " +
+                                   "[keystore password]");
+                System.exit(1);
+            }
+        }
+
+        if (args.length > 3) {
+            context = createContext(args[2], args[3]);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(port);
+        LocalServer server = new LocalServer(address, mode, context);
+
+        System.out.println("Listening on port " + server.getPort());
+
+        server.run();
+    }
+}